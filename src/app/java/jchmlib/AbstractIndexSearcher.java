@@ -2,203 +2,465 @@ package jchmlib;
 
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Logger;
 
 public abstract class AbstractIndexSearcher {
 
     private static final Logger LOG = Logger.getLogger(ChmIndexSearcher.class.getName());
-    protected final Set<String> stopWords = new HashSet<String>();
-    protected String wordChars = "";
+    /**
+     * Maximum total number of ranked documents kept in the query result cache.
+     */
+    private static final int QUERY_CACHE_WEIGHT = 100000;
+    /**
+     * Minimum number of documents ranked for a paged search.
+     */
+    private static final int MIN_RANKED_RESULTS = 500;
+    /**
+     * BM25 parameters: term frequency saturation and document length normalization.
+     */
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+    /**
+     * Orders search results by ascending score, earlier results first on ties.
+     */
+    private static final Comparator<SearchResult> SCORE_ORDER = new Comparator<SearchResult>() {
+        @Override
+        public int compare(SearchResult r1, SearchResult r2) {
+            int cmp = Double.compare(r1.score, r2.score);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return r1.docId > r2.docId ? -1 : (r1.docId == r2.docId ? 0 : 1);
+        }
+    };
+    protected final Tokenizer tokenizer = new Tokenizer();
+    private final QueryCache<RankedResults> queryCache =
+            new QueryCache<RankedResults>(QUERY_CACHE_WEIGHT);
 
     @SuppressWarnings("unused")
     public void setWordChars(String wordChars) {
-        this.wordChars = wordChars;
+        tokenizer.setWordChars(wordChars);
     }
 
     public void addStopWords(String word) {
-        stopWords.add(word);
+        tokenizer.addStopWord(word);
     }
 
-    protected abstract List<SearchResult> searchSingleWord(
-            String word, boolean wholeWords, boolean titlesOnly, Set<String> lastRunFiles);
-
-    protected Set<String> getInitialResults(List<SubQuery> subQueries) {
-        return new HashSet<String>();
+    /**
+     * @param word a word in lower case.
+     * @param wholeWords if false, also match words starting with the given word.
+     * @param titlesOnly only match words in titles.
+     * @return the documents containing the word, or null if there is none.
+     */
+    protected abstract PostingList searchSingleWord(
+            String word, boolean wholeWords, boolean titlesOnly);
+
+    /**
+     * Estimates the number of documents containing a word without fetching its postings.
+     * Cheaper words are searched first, so that the postings of expensive words are only
+     * checked against the documents still matching.
+     *
+     * @return the estimated document count, or -1 if it can't be estimated cheaply.
+     */
+    protected int estimateDocumentFrequency(String word, boolean wholeWords, boolean titlesOnly) {
+        return -1;
     }
 
+    /**
+     * @return the url of the document with the given ID, or null if not found.
+     */
+    protected abstract String getUrl(int docId);
+
     protected abstract void fixTopic(SearchResult result);
 
-    @SuppressWarnings("WeakerAccess")
-    protected void addResult(boolean isPhraseStart, SearchResult doc, HashMap<String, SearchResult> results) {
-        assert results != null;
-        String key = doc.url;
-        if (!results.containsKey(key)) {
-            doc.hitCount = 1;
-            results.put(key, doc);
-        } else {
-            SearchResult result = results.get(key);
-            if (isPhraseStart) {
-                result.totalFrequency += doc.totalFrequency;
-                result.lastFrequency = doc.totalFrequency;
-                result.locations = doc.locations;
-                result.hitCount += 1;
-            } else {
-                Set<Integer> newLocationCodes = new LinkedHashSet<Integer>();
-                for (Integer location : doc.locations) {
-                    Integer lastLocation = location - 1;
-                    if (result.locations.contains(lastLocation)) {
-                        newLocationCodes.add(location);
-                    }
-                }
-                if (newLocationCodes.size() > 0) {
-                    // LOG.fine(String.format("SubQuery %s, %s", doc.url, doc.topic != null ? doc.topic : ""));
-                    // LOG.fine("Locations[last]: " + result.locations);
-                    // LOG.fine("Locations[cur]:  " + doc.locations);
-                    // LOG.fine("Locations[new]:  " + newLocationCodes);
-                    result.locations = newLocationCodes;
-                    result.totalFrequency -= result.lastFrequency;
-                    result.lastFrequency = newLocationCodes.size();
-                    result.totalFrequency += result.lastFrequency;
-                    result.hitCount += 1;
-                }
+    /**
+     * @return the number of documents in the index, or 0 if unknown.
+     */
+    protected int getDocumentCount() {
+        return 0;
+    }
+
+    /**
+     * @return the number of words in the document, or 0 if the index doesn't record it.
+     */
+    protected int getDocumentLength(int docId) {
+        return 0;
+    }
+
+    /**
+     * @return the average number of words in a document, or 0 if the index doesn't record it.
+     */
+    protected double getAverageDocumentLength() {
+        return 0;
+    }
+
+    double getInverseDocumentFrequency(int documentFrequency) {
+        int documentCount = Math.max(getDocumentCount(), documentFrequency);
+        if (documentCount <= 0) {
+            return 1;
+        }
+        return Math.log(1 + (documentCount - documentFrequency + 0.5) / (documentFrequency + 0.5));
+    }
+
+    /**
+     * BM25 score of a word (or a phrase) in a document.
+     */
+    double getScore(int frequency, double idf, int docId) {
+        double lengthNorm = 1;
+        double averageLength = getAverageDocumentLength();
+        if (averageLength > 0) {
+            int length = getDocumentLength(docId);
+            if (length > 0) {
+                lengthNorm = 1 - BM25_B + BM25_B * length / averageLength;
             }
         }
+        return idf * frequency * (BM25_K1 + 1) / (frequency + BM25_K1 * lengthNorm);
+    }
+
+    /**
+     * Drops all cached query results, including those of searches still running.
+     * Subclasses should call it whenever the underlying index changes,
+     * after the change is visible to new searches.
+     */
+    protected void invalidateCache() {
+        queryCache.clear();
+    }
+
+    public long getCacheHitCount() {
+        return queryCache.getHitCount();
+    }
+
+    public long getCacheMissCount() {
+        return queryCache.getMissCount();
+    }
+
+    /**
+     * @return the fraction of searches answered from the query result cache,
+     * or 0 if nothing has been searched yet.
+     */
+    public double getCacheHitRate() {
+        long hits = queryCache.getHitCount();
+        long total = hits + queryCache.getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
     }
 
+    /**
+     * Builds the cache key of a query from its normalized form,
+     * so that queries differing only in case, punctuation or stop words share an entry.
+     * The key is also the state of a cursor, and can be parsed back by {@link #searchByCursor}.
+     */
+    private String getCacheKey(Query query, boolean wholeWords, boolean titlesOnly) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(query);
+        // control characters never appear in words
+        sb.append('\u0000');
+        sb.append(wholeWords ? 'w' : '-');
+        sb.append(titlesOnly ? 't' : '-');
+        return sb.toString();
+    }
+
+    /**
+     * Searches documents matching the query.
+     * See {@link QueryParser} for the query syntax.
+     *
+     * @param maxResults the maximum number of results, or 0 for all of them.
+     * @return a hash map from url to title, ordered by relevance,
+     * or null if there is no result found.
+     */
     @SuppressWarnings("SameParameterValue")
     public HashMap<String, String> search(String originalQuery,
             boolean wholeWords, boolean titlesOnly, int maxResults) {
-        HashMap<String, SearchResult> results = new LinkedHashMap<String, SearchResult>();
+        SearchResults results = search(originalQuery, wholeWords, titlesOnly, 0, maxResults);
+        if (results == null || results.getResults().size() == 0) {
+            return null;
+        }
 
-        List<SubQuery> subQueries = splitQuery(originalQuery);
+        HashMap<String, String> finalResults = new LinkedHashMap<String, String>();
+        for (SearchResult result : results.getResults()) {
+            finalResults.put(result.url, result.topic);
+        }
+        return finalResults;
+    }
 
-        Set<String> lastRunFiles = getInitialResults(subQueries);
+    /**
+     * Searches documents matching the query, and returns a page of the results.
+     * See {@link QueryParser} for the query syntax.
+     * <p>
+     * The ranked document IDs are cached, so later pages of the same query
+     * (see {@link SearchResults#getNextCursor()}) don't run it again.
+     *
+     * @param offset the rank of the first result to return.
+     * @param limit the maximum number of results to return, or 0 for all of them.
+     * @return a page of the results, or null if there is nothing to search for
+     * (like when the query only has stop words).
+     */
+    public SearchResults search(String originalQuery,
+            boolean wholeWords, boolean titlesOnly, int offset, int limit) {
+        return search(originalQuery, wholeWords, titlesOnly, offset, limit, 0);
+    }
 
-        int subQueryStep = -1;
-        for (SubQuery subQuery : subQueries) {
-            subQueryStep++;
+    /**
+     * Like {@link #search(String, boolean, boolean, int, int)}, but gives up
+     * when the query runs past a deadline.
+     * <p>
+     * The thread is never interrupted to stop a search, since an interrupt closes
+     * the channel of the CHM file when it comes during a read.
+     *
+     * @param deadline the time to give up at, see {@link System#currentTimeMillis()},
+     * or 0 for none.
+     * @throws CancellationException if the deadline passes while the query is run.
+     */
+    public SearchResults search(String originalQuery, boolean wholeWords,
+            boolean titlesOnly, int offset, int limit, long deadline) {
+        Query query = new QueryParser(this).parse(originalQuery);
+        if (query == null) {
+            return null;
+        }
+        LOG.fine("Query: " + query);
 
-            LOG.fine(String.format("SubQuery[%d]: %s, %s, %s",
-                    subQueryStep, subQuery.queryString, subQuery.isPhraseStart, subQuery.isInPhrase));
-            List<SearchResult> documentsForWord = searchSingleWord(
-                    subQuery.queryString, subQuery.isInPhrase || wholeWords, titlesOnly,
-                    lastRunFiles);
-            if (documentsForWord == null || documentsForWord.size() == 0) {
-                return null;
-            }
+        String cacheKey = getCacheKey(query, wholeWords, titlesOnly);
+        return getPage(cacheKey, query, wholeWords, titlesOnly, offset, limit, deadline);
+    }
 
-            for (SearchResult doc : documentsForWord) {
-                String key = doc.url;
-                if (subQueryStep > 0 && !results.containsKey(key)) {
-                    continue;
+    /**
+     * Returns the page of results starting at a cursor.
+     *
+     * @param cursor a cursor returned by {@link SearchResults#getNextCursor()}.
+     * @param limit the maximum number of results to return, or 0 for all of them.
+     * @return a page of the results, or null if the cursor is invalid.
+     */
+    public SearchResults searchByCursor(String cursor, int limit) {
+        String state = decodeCursor(cursor);
+        if (state == null) {
+            return null;
+        }
+        int offsetStart = state.lastIndexOf('\u0000');
+        int flagsStart = state.indexOf('\u0000');
+        if (offsetStart - flagsStart != 3) {
+            return null;
+        }
+
+        int offset;
+        try {
+            offset = Integer.parseInt(state.substring(offsetStart + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (offset < 0) {
+            return null;
+        }
+
+        String cacheKey = state.substring(0, offsetStart);
+        Query query = new QueryParser(this).parse(state.substring(0, flagsStart));
+        if (query == null) {
+            return null;
+        }
+        boolean wholeWords = state.charAt(flagsStart + 1) == 'w';
+        boolean titlesOnly = state.charAt(flagsStart + 2) == 't';
+        return getPage(cacheKey, query, wholeWords, titlesOnly, offset, limit, 0);
+    }
+
+    private SearchResults getPage(String cacheKey, Query query, boolean wholeWords,
+            boolean titlesOnly, int offset, int limit, long deadline) {
+        offset = Math.max(offset, 0);
+        long end = limit > 0 ? (long) offset + limit : Integer.MAX_VALUE;
+        RankedResults ranked = getRanked(cacheKey, query, wholeWords, titlesOnly, end,
+                deadline);
+
+        // documents without url are skipped, and the page filled from the ranks after them
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        int rank = offset;
+        while ((limit <= 0 || results.size() < limit) && rank < ranked.getTotalHits()) {
+            if (rank >= ranked.size()) {
+                ranked = getRanked(cacheKey, query, wholeWords, titlesOnly,
+                        (long) rank + limit - results.size(), deadline);
+                if (rank >= ranked.size()) {
+                    break;
                 }
-                addResult(subQuery.isPhraseStart, doc, results);
             }
+            SearchResult result = resolve(ranked, rank++);
+            if (result.url != null && result.url.length() > 0) {
+                results.add(result);
+            }
+        }
 
-            if (results.size() == 0) {
-                return null;
+        String nextCursor = null;
+        if (limit > 0 && rank < ranked.getTotalHits()) {
+            nextCursor = encodeCursor(cacheKey + '\u0000' + rank);
+        }
+        return new SearchResults(results, ranked.getTotalHits(), offset, nextCursor);
+    }
+
+    /**
+     * @param end the number of best results needed, or {@link Integer#MAX_VALUE} for all.
+     * @return the ranked results of the query, from the cache if it has enough of them.
+     */
+    private RankedResults getRanked(String cacheKey, Query query,
+            boolean wholeWords, boolean titlesOnly, long end, long deadline) {
+        // read before ranking, so that a result ranked on an index that changed
+        // meanwhile is not cached after invalidateCache()
+        long generation = queryCache.getGeneration();
+        RankedResults ranked = queryCache.get(cacheKey);
+        if (ranked == null || !ranked.covers(end)) {
+            int rankLimit = 0;
+            if (end < Integer.MAX_VALUE) {
+                // rank ahead, so that following pages are likely cached too
+                long previousLimit = ranked == null ? MIN_RANKED_RESULTS : 2L * ranked.size();
+                rankLimit = (int) Math.min(Math.max(end, previousLimit), Integer.MAX_VALUE);
             }
-            if (subQueryStep > 0) {
-                Iterator<Entry<String, SearchResult>> it = results.entrySet().iterator();
-                while (it.hasNext()) {
-                    if (it.next().getValue().hitCount < subQueryStep + 1) {
-                        it.remove();
-                    }
+            ranked = rank(query, wholeWords, titlesOnly, rankLimit, deadline);
+            queryCache.put(cacheKey, ranked, Math.max(ranked.size(), 1), generation);
+        }
+        return ranked;
+    }
+
+    /**
+     * Runs the query, keeping the best results with a min-heap.
+     *
+     * @param rankLimit the maximum number of results to rank, or 0 for all of them.
+     * @param deadline the time to give up at, or 0 for none.
+     * @throws CancellationException if the deadline passes.
+     */
+    private RankedResults rank(Query query,
+            boolean wholeWords, boolean titlesOnly, int rankLimit, long deadline) {
+        DocIterator it = query.createIterator(this, wholeWords, titlesOnly);
+        if (it == null) {
+            return new RankedResults(new int[0], new double[0], 0);
+        }
+
+        // min-heap of the best results so far, the worst of them on top,
+        // growing with the hits rather than allocated for a large limit up front
+        PriorityQueue<SearchResult> topResults = new PriorityQueue<SearchResult>(
+                rankLimit > 0 ? Math.min(rankLimit, 1024) + 1 : 64, SCORE_ORDER);
+        int totalHits = 0;
+        int docId;
+        while ((docId = it.nextDoc()) != DocIterator.NO_MORE_DOCS) {
+            if (deadline > 0 && (totalHits & 255) == 0
+                    && System.currentTimeMillis() > deadline) {
+                throw new CancellationException("Search timed out");
+            }
+            totalHits++;
+            double score = it.score();
+            if (rankLimit > 0 && topResults.size() >= rankLimit) {
+                SearchResult worst = topResults.peek();
+                // on ties, the document found earlier wins
+                if (score <= worst.score) {
+                    continue;
                 }
+                topResults.poll();
             }
-            lastRunFiles = results.keySet();
+            topResults.add(new SearchResult(docId, score));
         }
 
-        if (results.size() == 0) {
-            return null;
+        int[] docIds = new int[topResults.size()];
+        double[] scores = new double[topResults.size()];
+        for (int i = docIds.length - 1; i >= 0; i--) {
+            SearchResult result = topResults.poll();
+            docIds[i] = result.docId;
+            scores[i] = result.score;
         }
+        return new RankedResults(docIds, scores, totalHits);
+    }
 
-        ArrayList<SearchResult> resultList = new ArrayList<SearchResult>(results.values());
-        Collections.sort(resultList, new Comparator<SearchResult>() {
-            @Override
-            public int compare(SearchResult r1, SearchResult r2) {
-                return new Integer(r2.totalFrequency).compareTo(r1.totalFrequency);
+    private SearchResult resolve(RankedResults ranked, int rank) {
+        SearchResult result = ranked.getResolved(rank);
+        if (result == null) {
+            result = new SearchResult(ranked.getDocId(rank), ranked.getScore(rank));
+            result.url = getUrl(result.docId);
+            if (result.url != null && result.url.length() > 0) {
+                fixTopic(result);
             }
-        });
+            ranked.setResolved(rank, result);
+        }
+        return result;
+    }
 
-        HashMap<String, String> finalResults = new LinkedHashMap<String, String>();
-        for (SearchResult result : resultList) {
-            fixTopic(result);
-            finalResults.put(result.url, result.topic);
-            if (maxResults > 0 && finalResults.size() >= maxResults) {
-                break;
-            }
+    private static String encodeCursor(String state) {
+        byte[] bytes;
+        try {
+            bytes = state.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
-        return finalResults;
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0x0f, 16));
+            sb.append(Character.forDigit(b & 0x0f, 16));
+        }
+        return sb.toString();
     }
 
-    protected boolean isMultibyteChar(char c) {
+    /**
+     * @return the state of a cursor, or null if it is malformed.
+     */
+    private static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[cursor.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(cursor.charAt(2 * i), 16);
+            int low = Character.digit(cursor.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
         try {
-            return String.valueOf(c).getBytes("UTF8").length > 1;
-        } catch (UnsupportedEncodingException ignored) {
-            return true;
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
     }
 
+    /**
+     * @return the tokenizer splitting queries, which has to split text like the index searched.
+     */
+    protected Tokenizer getQueryTokenizer() {
+        return tokenizer;
+    }
+
     @SuppressWarnings("WeakerAccess")
     protected List<SubQuery> splitQuery(String originalQuery) {
-        List<SubQuery> queryList = new ArrayList<SubQuery>();
-
-        StringBuilder sb = new StringBuilder();
-        boolean isInPhrase = false;
-        boolean isInQuote = false;
-
-        for (char c : originalQuery.toCharArray()) {
-            boolean isMB = isMultibyteChar(c);
-            boolean isWordChar = Character.isLetterOrDigit(c) || wordChars.indexOf(c) >= 0;
-
-            if (!isMB && isWordChar) {
-                sb.append(c);
-            } else {
-                if (sb.length() > 0) {
-                    String word = sb.toString().toLowerCase();
-                    if (!stopWords.contains(word)) {
-                        queryList.add(new SubQuery(word, !isInPhrase));
-                    }
-                    sb.setLength(0);
-                    isInPhrase = true;
-                }
-
-                if (!isInQuote && c == '"') {
-                    isInQuote = true;
-                } else if (isInQuote && c == '"') {
-                    isInQuote = false;
-                } else if (!isInQuote && c == ' ') {
-                    isInPhrase = false;
-                }
+        Tokenizer tokenizer = getQueryTokenizer();
+        QuerySplitter splitter = new QuerySplitter(tokenizer);
+        Tokenizer.Scanner scanner = tokenizer.newScanner(splitter);
+        splitter.scanner = scanner;
+
+        int length = originalQuery.length();
+        for (int i = 0; i < length; i++) {
+            char c = originalQuery.charAt(i);
+            // ends the current word, if c is not part of it
+            scanner.add(c);
+            if (tokenizer.getCharClass(c) != Tokenizer.SEPARATOR) {
+                continue;
+            }
 
-                if (isMB && isWordChar) {
-                    String word = String.valueOf(c);
-                    if (!stopWords.contains(word)) {
-                        queryList.add(new SubQuery(word, !isInPhrase));
-                    }
-                    isInPhrase = true;
-                }
+            if (!splitter.isInQuote && c == '"') {
+                splitter.isInQuote = true;
+            } else if (splitter.isInQuote && c == '"') {
+                splitter.isInQuote = false;
+            } else if (!splitter.isInQuote && c == ' ') {
+                splitter.isInPhrase = false;
             }
         }
-
-        if (sb.length() > 0) {
-            String word = sb.toString().toLowerCase();
-            if (!stopWords.contains(word)) {
-                queryList.add(new SubQuery(word, !isInPhrase));
+        scanner.end();
+
+        List<SubQuery> queryList = splitter.queryList;
+        // the character ending a run of CJK bigrams is only needed to keep
+        // the words after it in a phrase at their locations
+        for (int i = queryList.size() - 1; i >= 0; i--) {
+            if (queryList.get(i).isRunTail
+                    && (i + 1 == queryList.size() || queryList.get(i + 1).isPhraseStart)) {
+                queryList.remove(i);
             }
         }
-
         for (int i=1; i<queryList.size(); i++) {
             SubQuery subQuery = queryList.get(i);
             if (!subQuery.isPhraseStart) {
@@ -214,21 +476,42 @@ public abstract class AbstractIndexSearcher {
         return queryList;
     }
 
+    private class QuerySplitter implements Tokenizer.TokenHandler {
+
+        final List<SubQuery> queryList = new ArrayList<SubQuery>();
+        final Tokenizer tokenizer;
+        Tokenizer.Scanner scanner;
+        boolean isInPhrase = false;
+        boolean isInQuote = false;
+
+        QuerySplitter(Tokenizer tokenizer) {
+            this.tokenizer = tokenizer;
+        }
 
-    protected class SearchResult {
-        public final String url;
+        @Override
+        public void onToken(char[] word, int length) {
+            if (!tokenizer.isStopWord(word, length)) {
+                SubQuery subQuery = new SubQuery(new String(word, 0, length), !isInPhrase);
+                subQuery.isRunTail = scanner.isRunTail();
+                queryList.add(subQuery);
+            }
+            isInPhrase = true;
+        }
+    }
+
+    public static class SearchResult {
+
+        public final int docId;
+        /**
+         * BM25 score of the document.
+         */
+        public final double score;
+        public String url;
         public String topic;
-        public Set<Integer> locations;
-        public int lastFrequency;
-        public int totalFrequency;
-        public int hitCount;
-        public SearchResult(String url, String topic, Set<Integer> locations, int totalFrequency) {
-            this.url = url;
-            this.topic = topic;
-            this.locations = locations;
-            this.lastFrequency = totalFrequency;
-            this.totalFrequency = totalFrequency;
-            hitCount = 1;
+
+        public SearchResult(int docId, double score) {
+            this.docId = docId;
+            this.score = score;
         }
     }
 
@@ -237,6 +520,10 @@ public abstract class AbstractIndexSearcher {
         public final String queryString;
         public final boolean isPhraseStart;
         public boolean isInPhrase;
+        /**
+         * see {@link Tokenizer.Scanner#isRunTail()}.
+         */
+        boolean isRunTail = false;
 
         public SubQuery(String queryString, boolean isNewWord) {
             this.queryString = queryString;
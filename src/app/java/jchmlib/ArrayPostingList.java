@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+/**
+ * A posting list held in arrays.
+ * Documents are appended with {@link #add(int, int, int[])} in ascending order of ID
+ * before the list is iterated.
+ * <p>
+ * Positions may be left out when they are expensive to get,
+ * and are then loaded by {@link #loadPositions(int)} only for the documents which need them.
+ */
+public class ArrayPostingList extends PostingList {
+
+    private int[] docIds;
+    private int[] frequencies;
+    private int[][] positions;
+    private int count = 0;
+    private int index = -1;
+
+    public ArrayPostingList() {
+        this(8);
+    }
+
+    public ArrayPostingList(int capacity) {
+        capacity = Math.max(capacity, 1);
+        docIds = new int[capacity];
+        frequencies = new int[capacity];
+        positions = new int[capacity][];
+    }
+
+    /**
+     * @param positions sorted positions, or null to load them later by {@link #loadPositions(int)}
+     */
+    public void add(int docId, int frequency, int[] positions) {
+        if (count == docIds.length) {
+            int capacity = count * 2;
+            int[] newDocIds = new int[capacity];
+            System.arraycopy(docIds, 0, newDocIds, 0, count);
+            docIds = newDocIds;
+            int[] newFrequencies = new int[capacity];
+            System.arraycopy(frequencies, 0, newFrequencies, 0, count);
+            frequencies = newFrequencies;
+            int[][] newPositions = new int[capacity][];
+            System.arraycopy(this.positions, 0, newPositions, 0, count);
+            this.positions = newPositions;
+        }
+        docIds[count] = docId;
+        frequencies[count] = frequency;
+        this.positions[count] = positions;
+        count++;
+    }
+
+    /**
+     * Loads positions left out when the document was added.
+     */
+    protected int[] loadPositions(int docId) {
+        return PositionLists.EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public int docId() {
+        if (index < 0) {
+            return -1;
+        }
+        return index < count ? docIds[index] : NO_MORE_DOCS;
+    }
+
+    @Override
+    public int nextDoc() {
+        if (index < count) {
+            index++;
+        }
+        return docId();
+    }
+
+    @Override
+    public int advance(int target) {
+        if (docId() >= target) {
+            return docId();
+        }
+        index = PositionLists.gallop(docIds, Math.max(index, 0), count, target);
+        return docId();
+    }
+
+    @Override
+    public int frequency() {
+        return frequencies[index];
+    }
+
+    @Override
+    public int[] positions() {
+        if (positions[index] == null) {
+            positions[index] = loadPositions(docIds[index]);
+        }
+        return positions[index];
+    }
+}
@@ -9,6 +9,9 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.logging.Logger;
@@ -111,6 +114,7 @@ public class ChmFile {
      */
     private ChmTopicsTree tree;
     private ChmIndexSearcher indexSearcher = null;
+    private String fingerprint = null;
 
     /**
      * Creates a new ChmFile.
@@ -224,6 +228,60 @@ public class ChmFile {
         return detectedLCID;
     }
 
+    /**
+     * Returns a fingerprint of the content of this archive: its size, and a hash of
+     * its header, its directory and its reset table. They are small and mostly read
+     * when the archive is opened, so this is quick even for a large archive.
+     * The same archive has the same fingerprint wherever it is stored.
+     */
+    public synchronized String getFingerprint() {
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer header = fetchBytes(0, CHM_ITSF_V3_LEN);
+        if (header != null) {
+            digest.update(header);
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        ByteBuffer entry = ByteBuffer.allocate(20);
+        for (ChmUnitInfo ui : dirMap.values()) {
+            digest.update(ui.path.getBytes(utf8));
+            entry.clear();
+            entry.putInt(ui.space).putLong(ui.start).putLong(ui.length);
+            entry.flip();
+            digest.update(entry);
+        }
+        if (resetTable != null) {
+            ByteBuffer offsets = ByteBuffer.allocate(8 * resetTable.length);
+            for (long offset : resetTable) {
+                offsets.putLong(offset);
+            }
+            offsets.flip();
+            digest.update(offsets);
+        }
+
+        long size;
+        try {
+            size = rf.length();
+        } catch (IOException e) {
+            size = 0;
+        }
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder(Long.toHexString(size)).append('-');
+        for (int i = 0; i < 8; i++) {
+            sb.append(String.format("%02x", hash[i] & 0xff));
+        }
+        fingerprint = sb.toString();
+        return fingerprint;
+    }
+
     private void readInitialHeaderAndDirectory() throws IOException {
         ByteBuffer bb = fetchBytesOrFail(0, CHM_ITSF_V3_LEN, "Failed to read ITSF header");
         ChmItsfHeader itsfHeader = new ChmItsfHeader(bb);
@@ -465,6 +523,15 @@ public class ChmFile {
         if (buf == null) {
             return null;
         }
+        return decodeObject(buf);
+    }
+
+    /**
+     * Decodes the content of an object with the encoding of this archive.
+     *
+     * @param buf the content returned by {@link #retrieveObject(ChmUnitInfo)}.
+     */
+    public String decodeObject(ByteBuffer buf) {
         return ByteBufferHelper.peakAsString(buf, encoding);
     }
 
@@ -4,9 +4,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -76,8 +74,65 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
         }
     }
 
+    @Override
+    protected String getUrl(int docId) {
+        ByteBuffer entry = getTopicEntry(docId);
+        if (entry == null) {
+            return null;
+        }
+        entry.getInt();
+        entry.getInt();
+        int urlOffset = entry.getInt();
+
+        ByteBuffer bufUrlTable = chmFile.retrieveObject(uiUrlTbl, urlOffset, 12);
+        if (bufUrlTable == null) {
+            return null;
+        }
+        bufUrlTable.getInt();
+        bufUrlTable.getInt();
+        int urlStrOffset = bufUrlTable.getInt();
+
+        ByteBuffer bufUrlStr = chmFile.retrieveObject(uiUrlStr, urlStrOffset + 8, 1024);
+        if (bufUrlStr == null) {
+            return null;
+        }
+        String url = ByteBufferHelper.parseString(bufUrlStr, chmFile.encoding);
+        if (url == null || url.length() == 0) {
+            return null;
+        }
+        return "/" + url;
+    }
+
     @Override
     protected void fixTopic(SearchResult result) {
+        String topic = null;
+        ByteBuffer entry = getTopicEntry(result.docId);
+        if (entry != null) {
+            entry.getInt();
+            int strOffset = entry.getInt();
+            ByteBuffer bufStrings = chmFile.retrieveObject(uiStrings, strOffset, 1024);
+            if (bufStrings != null) {
+                topic = ByteBufferHelper.parseString(bufStrings, chmFile.encoding);
+            }
+        }
+
+        if (topic == null || topic.length() == 0) {
+            topic = result.url.substring(1);
+        }
+        result.topic = topic;
+    }
+
+    private ByteBuffer getTopicEntry(int docIndex) {
+        if (notSearchable) {
+            return null;
+        }
+        return chmFile.retrieveObject(uiTopics, (long) docIndex * 16, 16);
+    }
+
+    @Override
+    protected int getDocumentCount() {
+        // each entry in #TOPICS is 16 bytes long
+        return notSearchable ? 0 : (int) (uiTopics.getLength() / 16);
     }
 
     // FIXME: fix javadoc
@@ -103,23 +158,61 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
      * @param titlesOnly search in titles only
      */
     @Override
-    protected List<SearchResult> searchSingleWord(
-            String query, boolean wholeWords, boolean titlesOnly, Set<String> lastRunFiles) {
+    protected PostingList searchSingleWord(
+            String query, boolean wholeWords, boolean titlesOnly) {
         if (notSearchable || query == null || query.equals("")) {
             return null;
         }
-        List<SearchResult> results = new ArrayList<SearchResult>();
+        // one posting list for each matching word, and for each context (body/title)
+        final List<PostingList> results = new ArrayList<PostingList>();
         try {
-            searchWithoutCatch(query, wholeWords, titlesOnly, results);
+            findWords(query, wholeWords, titlesOnly, new WordEntryHandler() {
+                @Override
+                public void onWordEntry(long wlcCount, long wlcSize, int wlcOffset) {
+                    ProcessWlcBlock(wlcCount, wlcSize, wlcOffset, results);
+                }
+            });
         } catch (IOException ignored) {
         }
-        return results;
+        if (results.size() == 0) {
+            return null;
+        }
+        return PostingList.union(results);
     }
 
-    private void searchWithoutCatch(String query, boolean wholeWords, boolean titlesOnly,
-            List<SearchResult> results) throws IOException {
-        assert results != null;
+    /**
+     * Adds up the document counts of the leaf entries of the matching words,
+     * without reading their WLC blocks.
+     */
+    @Override
+    protected int estimateDocumentFrequency(String word, boolean wholeWords, boolean titlesOnly) {
+        if (notSearchable || word == null || word.equals("")) {
+            return 0;
+        }
+        final long[] docCount = {0};
+        try {
+            findWords(word, wholeWords, titlesOnly, new WordEntryHandler() {
+                @Override
+                public void onWordEntry(long wlcCount, long wlcSize, int wlcOffset) {
+                    docCount[0] += wlcCount;
+                }
+            });
+        } catch (IOException ignored) {
+            return -1;
+        }
+        return (int) Math.min(docCount[0], Integer.MAX_VALUE);
+    }
+
+    /**
+     * Called for each leaf entry of a matching word, one per context (body/title).
+     */
+    private interface WordEntryHandler {
 
+        void onWordEntry(long wlcCount, long wlcSize, int wlcOffset);
+    }
+
+    private void findWords(String query, boolean wholeWords, boolean titlesOnly,
+            WordEntryHandler handler) throws IOException {
         if (notSearchable || query == null || query.equals("")) {
             return;
         }
@@ -177,13 +270,13 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
                 int cmpResult = wordBuilder.compareWith(queryAsBytes);
                 if (cmpResult == 0) {
                     LOG.fine("!found!");
-                    ProcessWlcBlock(wlcCount, wlcSize, wlcOffset, results);
+                    handler.onWordEntry(wlcCount, wlcSize, wlcOffset);
                     if (wholeWords) {
                         return;
                     }
                 } else if (cmpResult > 0) {
                     if (!wholeWords && wordBuilder.startsWith(queryAsBytes)) {
-                        ProcessWlcBlock(wlcCount, wlcSize, wlcOffset, results);
+                        handler.onWordEntry(wlcCount, wlcSize, wlcOffset);
                     } else {
                         break;
                     }
@@ -254,7 +347,7 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
     }
 
     private void ProcessWlcBlock(long wlcCount, long wlcSize, int wlcOffset,
-            List<SearchResult> results) {
+            List<PostingList> results) {
         try {
             ProcessWlcBlockWithoutCatch(wlcCount, wlcSize, wlcOffset, results);
         } catch (Exception e) {
@@ -263,13 +356,15 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
     }
 
     private void ProcessWlcBlockWithoutCatch(long wlcCount, long wlcSize, int wlcOffset,
-            List<SearchResult> results) throws IOException {
+            List<PostingList> results) throws IOException {
         ByteBuffer bufWlcBlock = chmFile.retrieveObject(uiMain, wlcOffset, wlcSize);
         if (bufWlcBlock == null) {
             LOG.fine("Can't retrieve object:" + uiMain.path);
             return;
         }
 
+        // the url and topic of a document are only read for the results shown
+        ArrayPostingList postings = new ArrayPostingList((int) wlcCount);
         long docIndex = 0;
         for (long i = 0; i < wlcCount; i++) {
             BitReader bitReader = new BitReader(bufWlcBlock, false);
@@ -278,62 +373,19 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
             // locations of the word in the topics
             long locationCodeCount = bitReader.getSrInt(
                     ftsHeader.codeCountS, ftsHeader.codeCountR);
-            Set<Integer> locationCodes = new LinkedHashSet<Integer>();
+            // location codes are delta encoded, so they are sorted
+            int[] locationCodes = new int[(int) locationCodeCount];
             long lastLocationCode = 0;
             for (int j = 0; j < locationCodeCount; j++) {
                 long locationCode = bitReader.getSrInt(ftsHeader.locCodesS, ftsHeader.locCodesR);
                 locationCode += lastLocationCode;
-                locationCodes.add((int) locationCode);
+                locationCodes[j] = (int) locationCode;
                 lastLocationCode = locationCode;
             }
 
-            ByteBuffer entry = chmFile.retrieveObject(uiTopics, docIndex * 16, 16);
-            if (entry == null) {
-                LOG.fine("Can't retrieve object:" + uiTopics.path);
-                return;
-            }
-            entry.getInt();
-            int strOffset = entry.getInt();
-            int urlOffset = entry.getInt();
-
-            String topic;
-            ByteBuffer bufStrings = chmFile.retrieveObject(uiStrings, strOffset, 1024);
-            if (bufStrings == null) {
-                topic = null;
-            } else {
-                topic = ByteBufferHelper.parseString(bufStrings, chmFile.encoding);
-            }
-
-            ByteBuffer bufUrlTable = chmFile.retrieveObject(uiUrlTbl, urlOffset, 12);
-            if (bufUrlTable == null) {
-                return;
-            }
-            ByteBufferHelper.skip(bufUrlTable, 8); // bufUrlTable.getInt(); // bufUrlTable.getInt();
-            int urlStrOffset = bufUrlTable.getInt();
-
-            ByteBuffer bufUrlStr = chmFile.retrieveObject(uiUrlStr, urlStrOffset + 8, 1024);
-            if (bufUrlStr == null) {
-                return;
-            }
-            String url = ByteBufferHelper.parseString(bufUrlStr, chmFile.encoding);
-            if (url == null) {
-                return;
-            }
-
-            if (topic == null || topic.length() == 0) {
-                topic = url;
-            }
-
-            if (!url.equals("") && !topic.equals("")) {
-                addResult(url, topic, locationCodes, results);
-            }
+            postings.add((int) docIndex, locationCodes.length, locationCodes);
         }
-    }
-
-    private void addResult(String url, String topic, Set<Integer> locations,
-            List<SearchResult> results) {
-        assert results != null;
-        results.add(new SearchResult("/" + url, topic, locations, locations.size()));
+        results.add(postings);
     }
 
     class WordBuilder {
@@ -77,6 +77,20 @@ public class ChmUnitInfo {
         return length;
     }
 
+    /**
+     * @return 0 if the object is stored uncompressed, 1 if it is compressed.
+     */
+    public int getSpace() {
+        return space;
+    }
+
+    /**
+     * @return the offset of the object in its content section.
+     */
+    public long getStart() {
+        return start;
+    }
+
     public int getFlags() {
         return flags;
     }
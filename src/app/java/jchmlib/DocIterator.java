@@ -0,0 +1,321 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Iterates the documents matching a query in ascending order of document ID.
+ * <p>
+ * Iterators of compound queries move their children with {@link #advance(int)},
+ * so a child is only asked about the documents which the other children still match.
+ */
+abstract class DocIterator {
+
+    static final int NO_MORE_DOCS = PostingList.NO_MORE_DOCS;
+
+    /**
+     * Orders iterators by estimated cost, cheapest first.
+     */
+    private static final Comparator<DocIterator> COST_ORDER = new Comparator<DocIterator>() {
+        @Override
+        public int compare(DocIterator it1, DocIterator it2) {
+            long cost1 = it1.cost();
+            long cost2 = it2.cost();
+            return cost1 < cost2 ? -1 : (cost1 == cost2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * @return the current document ID, -1 if iteration has not started,
+     * or {@link #NO_MORE_DOCS} if it has ended.
+     */
+    abstract int docId();
+
+    abstract int nextDoc();
+
+    /**
+     * Moves to the first matching document whose ID is not less than target.
+     */
+    abstract int advance(int target);
+
+    /**
+     * @return estimated number of matching documents.
+     */
+    abstract long cost();
+
+    /**
+     * @return the score of the current document.
+     */
+    abstract double score();
+
+    /**
+     * Iterates the postings of a word.
+     * The postings are only fetched when the iterator is first moved.
+     */
+    static class TermIterator extends DocIterator {
+
+        private final AbstractIndexSearcher searcher;
+        private final String word;
+        private final boolean wholeWords;
+        private final boolean titlesOnly;
+        private PostingList postings = null;
+        private long cost = -1;
+        private double idf = 0;
+
+        TermIterator(AbstractIndexSearcher searcher, String word,
+                boolean wholeWords, boolean titlesOnly) {
+            this.searcher = searcher;
+            this.word = word;
+            this.wholeWords = wholeWords;
+            this.titlesOnly = titlesOnly;
+        }
+
+        private PostingList getPostings() {
+            if (postings == null) {
+                postings = searcher.searchSingleWord(word, wholeWords, titlesOnly);
+                if (postings == null) {
+                    postings = new ArrayPostingList(1);
+                }
+                idf = searcher.getInverseDocumentFrequency(postings.size());
+            }
+            return postings;
+        }
+
+        @Override
+        int docId() {
+            return postings == null ? -1 : postings.docId();
+        }
+
+        @Override
+        int nextDoc() {
+            return getPostings().nextDoc();
+        }
+
+        @Override
+        int advance(int target) {
+            return getPostings().advance(target);
+        }
+
+        @Override
+        long cost() {
+            if (cost < 0) {
+                int estimate = searcher.estimateDocumentFrequency(word, wholeWords, titlesOnly);
+                cost = estimate >= 0 ? estimate : getPostings().size();
+            }
+            return cost;
+        }
+
+        @Override
+        double score() {
+            return searcher.getScore(postings.frequency(), idf, postings.docId());
+        }
+
+        double getIdf() {
+            getPostings();
+            return idf;
+        }
+
+        int[] positions() {
+            return postings.positions();
+        }
+    }
+
+    /**
+     * Matches documents matched by all the required iterators and none of the excluded ones.
+     * The cheapest required iterator leads, and the others are advanced to its candidates.
+     */
+    static class ConjunctionIterator extends DocIterator {
+
+        private final DocIterator[] required;
+        private final DocIterator[] excluded;
+        private int docId = -1;
+
+        ConjunctionIterator(DocIterator[] required, DocIterator[] excluded) {
+            assert required.length > 0;
+            this.required = required.clone();
+            this.excluded = excluded;
+            Arrays.sort(this.required, COST_ORDER);
+        }
+
+        @Override
+        int docId() {
+            return docId;
+        }
+
+        @Override
+        int nextDoc() {
+            return doNext(required[0].nextDoc());
+        }
+
+        @Override
+        int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            return doNext(required[0].advance(target));
+        }
+
+        private int doNext(int target) {
+            outer:
+            while (target != NO_MORE_DOCS) {
+                for (int i = 1; i < required.length; i++) {
+                    int doc = required[i].advance(target);
+                    if (doc > target) {
+                        target = required[0].advance(doc);
+                        continue outer;
+                    }
+                }
+                for (DocIterator it : excluded) {
+                    if (it.advance(target) == target) {
+                        target = required[0].nextDoc();
+                        continue outer;
+                    }
+                }
+                if (!matches()) {
+                    target = required[0].nextDoc();
+                    continue;
+                }
+                docId = target;
+                return docId;
+            }
+            docId = NO_MORE_DOCS;
+            return docId;
+        }
+
+        /**
+         * Additional check on a document matched by all required iterators.
+         */
+        boolean matches() {
+            return true;
+        }
+
+        @Override
+        long cost() {
+            return required[0].cost();
+        }
+
+        @Override
+        double score() {
+            double score = 0;
+            for (DocIterator it : required) {
+                score += it.score();
+            }
+            return score;
+        }
+    }
+
+    /**
+     * Matches documents containing the words next to each other.
+     * Positions are only compared for documents containing all the words.
+     */
+    static class PhraseIterator extends ConjunctionIterator {
+
+        private final AbstractIndexSearcher searcher;
+        private final TermIterator[] terms;
+        private int frequency = 0;
+        private double idf = -1;
+
+        /**
+         * @param terms iterators of the words in phrase order.
+         */
+        PhraseIterator(AbstractIndexSearcher searcher, TermIterator[] terms) {
+            super(terms, new DocIterator[0]);
+            this.searcher = searcher;
+            this.terms = terms;
+        }
+
+        @Override
+        boolean matches() {
+            int[] locations = terms[0].positions();
+            for (int i = 1; i < terms.length && locations.length > 0; i++) {
+                locations = PositionLists.followingPositions(locations, terms[i].positions());
+            }
+            frequency = locations.length;
+            return frequency > 0;
+        }
+
+        @Override
+        double score() {
+            if (idf < 0) {
+                // a phrase is scored as one term, rarer than each of its words
+                idf = 0;
+                for (TermIterator term : terms) {
+                    idf += term.getIdf();
+                }
+            }
+            return searcher.getScore(frequency, idf, docId());
+        }
+    }
+
+    /**
+     * Matches documents matched by any of the iterators.
+     */
+    static class DisjunctionIterator extends DocIterator {
+
+        private final DocIterator[] children;
+        private int docId = -1;
+
+        DisjunctionIterator(DocIterator[] children) {
+            this.children = children;
+        }
+
+        @Override
+        int docId() {
+            return docId;
+        }
+
+        @Override
+        int nextDoc() {
+            if (docId == NO_MORE_DOCS) {
+                return docId;
+            }
+            int minDoc = NO_MORE_DOCS;
+            for (DocIterator child : children) {
+                int doc = child.docId();
+                if (doc == docId) {
+                    doc = child.nextDoc();
+                }
+                minDoc = Math.min(minDoc, doc);
+            }
+            docId = minDoc;
+            return docId;
+        }
+
+        @Override
+        int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+            int minDoc = NO_MORE_DOCS;
+            for (DocIterator child : children) {
+                minDoc = Math.min(minDoc, child.advance(target));
+            }
+            docId = minDoc;
+            return docId;
+        }
+
+        @Override
+        long cost() {
+            long cost = 0;
+            for (DocIterator child : children) {
+                cost += child.cost();
+            }
+            return cost;
+        }
+
+        @Override
+        double score() {
+            double score = 0;
+            for (DocIterator child : children) {
+                if (child.docId() == docId) {
+                    score += child.score();
+                }
+            }
+            return score;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+/**
+ * Operations on sorted lists of word positions, stored as {@code int[]}.
+ */
+final class PositionLists {
+
+    static final int[] EMPTY = new int[0];
+
+    /**
+     * Switch from a linear merge to galloping when one list is
+     * this many times longer than the other.
+     */
+    private static final int GALLOP_RATIO = 8;
+
+    private PositionLists() {
+    }
+
+    /**
+     * Finds the positions in {@code current} that directly follow a position in
+     * {@code previous}, that is, the positions where a phrase continues.
+     *
+     * @param previous sorted positions of the phrase matched so far
+     * @param current sorted positions of the next word in the phrase
+     * @return sorted positions of the next word which continue the phrase
+     */
+    static int[] followingPositions(int[] previous, int[] current) {
+        if (previous.length == 0 || current.length == 0) {
+            return EMPTY;
+        }
+
+        int[] matched = new int[Math.min(previous.length, current.length)];
+        int count = 0;
+
+        if ((long) previous.length * GALLOP_RATIO < current.length) {
+            int j = 0;
+            for (int location : previous) {
+                j = gallop(current, j, location + 1);
+                if (j >= current.length) {
+                    break;
+                }
+                if (current[j] == location + 1) {
+                    matched[count++] = location + 1;
+                }
+            }
+        } else if ((long) current.length * GALLOP_RATIO < previous.length) {
+            int i = 0;
+            for (int location : current) {
+                i = gallop(previous, i, location - 1);
+                if (i >= previous.length) {
+                    break;
+                }
+                if (previous[i] == location - 1) {
+                    matched[count++] = location;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < previous.length && j < current.length) {
+                int expected = previous[i] + 1;
+                if (current[j] < expected) {
+                    j++;
+                } else if (current[j] > expected) {
+                    i++;
+                } else {
+                    matched[count++] = current[j];
+                    i++;
+                    j++;
+                }
+            }
+        }
+
+        if (count == matched.length) {
+            return matched;
+        }
+        int[] result = new int[count];
+        System.arraycopy(matched, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Merges two sorted lists, dropping duplicates.
+     */
+    static int[] merge(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        } else if (b.length == 0) {
+            return a;
+        }
+
+        int[] merged = new int[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j >= b.length || (i < a.length && a[i] <= b[j])) {
+                next = a[i++];
+            } else {
+                next = b[j++];
+            }
+            if (count == 0 || merged[count - 1] != next) {
+                merged[count++] = next;
+            }
+        }
+
+        if (count == merged.length) {
+            return merged;
+        }
+        int[] result = new int[count];
+        System.arraycopy(merged, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @return the index of the first element in {@code a[from..]} not less than {@code target},
+     * or {@code a.length} if there is none.
+     */
+    static int gallop(int[] a, int from, int target) {
+        return gallop(a, from, a.length, target);
+    }
+
+    /**
+     * @return the index of the first element in {@code a[from..end)} not less than {@code target},
+     * or {@code end} if there is none.
+     */
+    static int gallop(int[] a, int from, int end, int target) {
+        if (from >= end || a[from] >= target) {
+            return from;
+        }
+
+        // a[low] < target, and a[high] >= target if high < end
+        int low = from;
+        int step = 1;
+        int high = from + step;
+        while (high < end && a[high] < target) {
+            low = high;
+            step <<= 1;
+            high = low + step;
+        }
+        if (high > end) {
+            high = end;
+        }
+
+        while (high - low > 1) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] < target) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+}
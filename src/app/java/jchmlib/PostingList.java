@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+import java.util.List;
+
+/**
+ * The documents containing a word, iterated in ascending order of document ID.
+ * <pre>
+ * {@code
+ * int docId;
+ * while ((docId = postings.nextDoc()) != PostingList.NO_MORE_DOCS) {
+ *     int[] positions = postings.positions();
+ *     ...
+ * }
+ * }
+ * </pre>
+ */
+public abstract class PostingList {
+
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /**
+     * Merges several posting lists (like the postings of all words with a given prefix)
+     * into one. Frequencies of a document are added up and positions are merged.
+     */
+    public static PostingList union(List<PostingList> lists) {
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        return new UnionPostingList(lists);
+    }
+
+    /**
+     * @return the number of documents in this list, or an estimate of it.
+     */
+    public abstract int size();
+
+    /**
+     * @return the current document ID, -1 if iteration has not started,
+     * or {@link #NO_MORE_DOCS} if it has ended.
+     */
+    public abstract int docId();
+
+    /**
+     * Moves to the next document.
+     *
+     * @return the new document ID, or {@link #NO_MORE_DOCS}.
+     */
+    public abstract int nextDoc();
+
+    /**
+     * Moves to the first document whose ID is not less than target.
+     * Stays on the current document if its ID is already not less than target.
+     *
+     * @return the new document ID, or {@link #NO_MORE_DOCS}.
+     */
+    public int advance(int target) {
+        int docId = docId();
+        while (docId < target) {
+            docId = nextDoc();
+        }
+        return docId;
+    }
+
+    /**
+     * @return the number of times the word occurs in the current document.
+     */
+    public abstract int frequency();
+
+    /**
+     * @return sorted positions of the word in the current document.
+     */
+    public abstract int[] positions();
+}
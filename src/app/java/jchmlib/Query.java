@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A node of a compiled query, see {@link QueryParser}.
+ * <p>
+ * {@link #toString()} gives a normalized form of the query,
+ * which is the same for queries differing only in case, punctuation, stop words and the like.
+ * The normalized form is itself a query, which {@link QueryParser} compiles to an equal tree.
+ */
+abstract class Query {
+
+    /**
+     * @return an iterator over the matching documents,
+     * or null if the query can't match any document.
+     */
+    abstract DocIterator createIterator(AbstractIndexSearcher searcher,
+            boolean wholeWords, boolean titlesOnly);
+
+    /**
+     * A single word.
+     */
+    static class TermQuery extends Query {
+
+        final String word;
+
+        TermQuery(String word) {
+            this.word = word;
+        }
+
+        @Override
+        DocIterator createIterator(AbstractIndexSearcher searcher,
+                boolean wholeWords, boolean titlesOnly) {
+            return new DocIterator.TermIterator(searcher, word, wholeWords, titlesOnly);
+        }
+
+        @Override
+        public String toString() {
+            return word;
+        }
+    }
+
+    /**
+     * Words next to each other.
+     */
+    static class PhraseQuery extends Query {
+
+        final List<String> words;
+
+        PhraseQuery(List<String> words) {
+            this.words = words;
+        }
+
+        @Override
+        DocIterator createIterator(AbstractIndexSearcher searcher,
+                boolean wholeWords, boolean titlesOnly) {
+            DocIterator.TermIterator[] terms = new DocIterator.TermIterator[words.size()];
+            for (int i = 0; i < terms.length; i++) {
+                // words in a phrase always match whole words
+                terms[i] = new DocIterator.TermIterator(searcher, words.get(i), true, titlesOnly);
+            }
+            return new DocIterator.PhraseIterator(searcher, terms);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('"');
+            String lastWord = null;
+            for (String word : words) {
+                if (lastWord != null && isCjkRunContinued(lastWord, word)) {
+                    // written as the run, which splits into the same bigrams
+                    sb.append(word, 1, word.length());
+                } else {
+                    if (sb.length() > 1) {
+                        sb.append(' ');
+                    }
+                    sb.append(word);
+                }
+                lastWord = word;
+            }
+            sb.append('"');
+            return sb.toString();
+        }
+
+        /**
+         * @return whether the word is the next bigram of a run of CJK characters,
+         * or the character ending it, after the given bigram.
+         */
+        private static boolean isCjkRunContinued(String bigram, String word) {
+            if (bigram.length() != 2 || word.length() > 2
+                    || word.charAt(0) != bigram.charAt(1)) {
+                return false;
+            }
+            for (int i = 0; i < 2; i++) {
+                if (!Tokenizer.isCjk(bigram.charAt(i))
+                        || (i < word.length() && !Tokenizer.isCjk(word.charAt(i)))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Documents matching all the required queries, and none of the excluded queries.
+     */
+    static class AndQuery extends Query {
+
+        final List<Query> required = new ArrayList<Query>();
+        final List<Query> excluded = new ArrayList<Query>();
+
+        @Override
+        DocIterator createIterator(AbstractIndexSearcher searcher,
+                boolean wholeWords, boolean titlesOnly) {
+            List<DocIterator> requiredIterators = new ArrayList<DocIterator>();
+            for (Query query : required) {
+                DocIterator it = query.createIterator(searcher, wholeWords, titlesOnly);
+                if (it == null) {
+                    return null;
+                }
+                requiredIterators.add(it);
+            }
+            if (requiredIterators.size() == 0) {
+                // a query like "NOT hello" would match almost everything
+                return null;
+            }
+
+            List<DocIterator> excludedIterators = new ArrayList<DocIterator>();
+            for (Query query : excluded) {
+                DocIterator it = query.createIterator(searcher, wholeWords, titlesOnly);
+                if (it != null) {
+                    excludedIterators.add(it);
+                }
+            }
+
+            if (requiredIterators.size() == 1 && excludedIterators.size() == 0) {
+                return requiredIterators.get(0);
+            }
+            return new DocIterator.ConjunctionIterator(
+                    requiredIterators.toArray(new DocIterator[requiredIterators.size()]),
+                    excludedIterators.toArray(new DocIterator[excludedIterators.size()]));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('(');
+            for (Query query : required) {
+                if (sb.length() > 1) {
+                    sb.append(" AND ");
+                }
+                sb.append(query);
+            }
+            for (Query query : excluded) {
+                if (sb.length() > 1) {
+                    sb.append(" AND ");
+                }
+                sb.append("NOT ").append(query);
+            }
+            sb.append(')');
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Documents matching any of the queries.
+     */
+    static class OrQuery extends Query {
+
+        final List<Query> children = new ArrayList<Query>();
+
+        @Override
+        DocIterator createIterator(AbstractIndexSearcher searcher,
+                boolean wholeWords, boolean titlesOnly) {
+            List<DocIterator> iterators = new ArrayList<DocIterator>();
+            for (Query query : children) {
+                DocIterator it = query.createIterator(searcher, wholeWords, titlesOnly);
+                if (it != null) {
+                    iterators.add(it);
+                }
+            }
+            if (iterators.size() == 0) {
+                return null;
+            } else if (iterators.size() == 1) {
+                return iterators.get(0);
+            }
+            return new DocIterator.DisjunctionIterator(
+                    iterators.toArray(new DocIterator[iterators.size()]));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('(');
+            for (Query query : children) {
+                if (sb.length() > 1) {
+                    sb.append(" OR ");
+                }
+                sb.append(query);
+            }
+            sb.append(')');
+            return sb.toString();
+        }
+    }
+}
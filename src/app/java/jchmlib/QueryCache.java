@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache for search results.
+ * <p>
+ * Each entry has a weight (normally the number of hits it holds),
+ * and least recently used entries are evicted once the total weight
+ * exceeds the limit. All methods are thread-safe.
+ * <p>
+ * Each {@link #clear()} starts a new generation, and values computed
+ * in an older generation are not put into the cache.
+ */
+class QueryCache<V> {
+
+    private final LinkedHashMap<String, Entry<V>> entries =
+            new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+    private final long maxWeight;
+    private long totalWeight = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long generation = 0;
+
+    QueryCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    synchronized V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    /**
+     * @param generation the generation the value was computed in,
+     * see {@link #getGeneration()}.
+     */
+    synchronized void put(String key, V value, int weight, long generation) {
+        // the cache was cleared while the value was computed, so it may be stale
+        if (generation != this.generation) {
+            return;
+        }
+        // an entry of weight 0 would never be evicted
+        weight = Math.max(weight, 1);
+        if (weight > maxWeight) {
+            return;
+        }
+
+        Entry<V> old = entries.put(key, new Entry<V>(value, weight));
+        if (old != null) {
+            totalWeight -= old.weight;
+        }
+        totalWeight += weight;
+
+        Iterator<Map.Entry<String, Entry<V>>> it = entries.entrySet().iterator();
+        while (totalWeight > maxWeight && it.hasNext()) {
+            totalWeight -= it.next().getValue().weight;
+            it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        totalWeight = 0;
+        generation++;
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getWeight() {
+        return totalWeight;
+    }
+
+    private static class Entry<V> {
+
+        final V value;
+        final int weight;
+
+        Entry(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
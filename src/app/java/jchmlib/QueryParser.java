@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a query string into a tree of {@link Query} nodes.
+ * <p>
+ * Words are matched in any order, unless they are quoted (like {@code "hello world"})
+ * or joined by non-word characters (like {@code hello-world}), in which case they must
+ * appear next to each other. Queries can be combined with the (upper case) operators
+ * {@code AND}, {@code OR}, {@code NOT} and parentheses, for example:
+ * <pre>
+ * hello world
+ * "hello world" OR (hello AND java)
+ * hello NOT (world OR java)
+ * </pre>
+ * {@code AND} binds tighter than {@code OR}, and is implied between adjacent queries.
+ */
+class QueryParser {
+
+    private final AbstractIndexSearcher searcher;
+    private final List<Token> tokens = new ArrayList<Token>();
+    private int index = 0;
+
+    QueryParser(AbstractIndexSearcher searcher) {
+        this.searcher = searcher;
+    }
+
+    /**
+     * @return the compiled query, or null if there is nothing to search for
+     * (like when the query only has stop words).
+     */
+    Query parse(String queryString) {
+        tokens.clear();
+        index = 0;
+        tokenize(queryString);
+
+        Query query = parseOr();
+        while (index < tokens.size()) {
+            // skip unmatched ')'
+            index++;
+            Query next = parseOr();
+            if (query == null) {
+                query = next;
+            } else if (next != null) {
+                Query.AndQuery andQuery = new Query.AndQuery();
+                andQuery.required.add(query);
+                andQuery.required.add(next);
+                query = andQuery;
+            }
+        }
+        return query;
+    }
+
+    private void tokenize(String queryString) {
+        StringBuilder text = new StringBuilder();
+        boolean isInQuote = false;
+
+        int length = queryString.length();
+        for (int i = 0; i < length; i++) {
+            char c = queryString.charAt(i);
+            if (isInQuote) {
+                text.append(c);
+                if (c == '"') {
+                    isInQuote = false;
+                }
+            } else if (c == '"') {
+                text.append(c);
+                isInQuote = true;
+            } else if (c == '(' || c == ')') {
+                addTextToken(text);
+                tokens.add(new Token(c == '(' ? TokenType.LEFT_PAREN : TokenType.RIGHT_PAREN));
+            } else if (Character.isWhitespace(c)) {
+                text.append(' ');
+            } else {
+                int end = i + 1;
+                while (end < length && !isDelimiter(queryString.charAt(end))) {
+                    end++;
+                }
+                String word = queryString.substring(i, end);
+                TokenType operator = getOperator(word);
+                if (operator != null) {
+                    addTextToken(text);
+                    tokens.add(new Token(operator));
+                } else {
+                    text.append(word);
+                }
+                i = end - 1;
+            }
+        }
+        addTextToken(text);
+    }
+
+    private boolean isDelimiter(char c) {
+        return c == '"' || c == '(' || c == ')' || Character.isWhitespace(c);
+    }
+
+    private TokenType getOperator(String word) {
+        if (word.equals("AND")) {
+            return TokenType.AND;
+        } else if (word.equals("OR")) {
+            return TokenType.OR;
+        } else if (word.equals("NOT")) {
+            return TokenType.NOT;
+        }
+        return null;
+    }
+
+    /**
+     * Splits text between operators into words and phrases.
+     */
+    private void addTextToken(StringBuilder text) {
+        if (text.length() == 0) {
+            return;
+        }
+
+        Token token = new Token(TokenType.TEXT);
+        List<String> phrase = new ArrayList<String>();
+        for (AbstractIndexSearcher.SubQuery subQuery : searcher.splitQuery(text.toString())) {
+            if (subQuery.isPhraseStart) {
+                addPhrase(phrase, token.queries);
+                phrase = new ArrayList<String>();
+            }
+            phrase.add(subQuery.queryString);
+        }
+        addPhrase(phrase, token.queries);
+        text.setLength(0);
+
+        if (token.queries.size() > 0) {
+            tokens.add(token);
+        }
+    }
+
+    private void addPhrase(List<String> words, List<Query> queries) {
+        if (words.size() == 1) {
+            queries.add(new Query.TermQuery(words.get(0)));
+        } else if (words.size() > 1) {
+            queries.add(new Query.PhraseQuery(words));
+        }
+    }
+
+    private Token peek() {
+        return index < tokens.size() ? tokens.get(index) : null;
+    }
+
+    private Query parseOr() {
+        Query.OrQuery orQuery = new Query.OrQuery();
+        Query query = parseAnd();
+        if (query != null) {
+            orQuery.children.add(query);
+        }
+        while (peek() != null && peek().type == TokenType.OR) {
+            index++;
+            query = parseAnd();
+            if (query != null) {
+                orQuery.children.add(query);
+            }
+        }
+
+        if (orQuery.children.size() == 0) {
+            return null;
+        } else if (orQuery.children.size() == 1) {
+            return orQuery.children.get(0);
+        }
+        return orQuery;
+    }
+
+    private Query parseAnd() {
+        Query.AndQuery andQuery = new Query.AndQuery();
+        while (true) {
+            Token token = peek();
+            if (token == null || token.type == TokenType.OR
+                    || token.type == TokenType.RIGHT_PAREN) {
+                break;
+            }
+
+            index++;
+            if (token.type == TokenType.AND) {
+                continue;
+            }
+
+            if (token.type == TokenType.NOT) {
+                Token operand = peek();
+                if (operand == null) {
+                    break;
+                }
+                if (operand.type == TokenType.TEXT) {
+                    // NOT only applies to the first word or phrase
+                    index++;
+                    andQuery.excluded.add(operand.queries.get(0));
+                    andQuery.required.addAll(operand.queries.subList(1, operand.queries.size()));
+                } else if (operand.type == TokenType.LEFT_PAREN) {
+                    index++;
+                    Query query = parseGroup();
+                    if (query != null) {
+                        andQuery.excluded.add(query);
+                    }
+                }
+            } else if (token.type == TokenType.TEXT) {
+                andQuery.required.addAll(token.queries);
+            } else if (token.type == TokenType.LEFT_PAREN) {
+                Query query = parseGroup();
+                if (query != null) {
+                    andQuery.required.add(query);
+                }
+            }
+        }
+
+        if (andQuery.required.size() == 0 && andQuery.excluded.size() == 0) {
+            return null;
+        } else if (andQuery.required.size() == 1 && andQuery.excluded.size() == 0) {
+            return andQuery.required.get(0);
+        }
+        return andQuery;
+    }
+
+    /**
+     * Parses the rest of a group after '('.
+     */
+    private Query parseGroup() {
+        Query query = parseOr();
+        if (peek() != null && peek().type == TokenType.RIGHT_PAREN) {
+            index++;
+        }
+        return query;
+    }
+
+    enum TokenType {
+        TEXT, AND, OR, NOT, LEFT_PAREN, RIGHT_PAREN
+    }
+
+    static class Token {
+
+        final TokenType type;
+        /**
+         * words and phrases of a TEXT token.
+         */
+        final List<Query> queries = new ArrayList<Query>();
+
+        Token(TokenType type) {
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+import jchmlib.AbstractIndexSearcher.SearchResult;
+
+/**
+ * The ranked document IDs of a query, kept in the query cache
+ * so that later pages are served without running the query again.
+ * <p>
+ * Only the best {@link #size()} of the {@link #getTotalHits()} matching documents are ranked.
+ * Urls and topics are resolved on first access, and remembered.
+ */
+class RankedResults {
+
+    private final int[] docIds;
+    private final double[] scores;
+    private final int totalHits;
+    private final SearchResult[] resolved;
+
+    RankedResults(int[] docIds, double[] scores, int totalHits) {
+        this.docIds = docIds;
+        this.scores = scores;
+        this.totalHits = totalHits;
+        resolved = new SearchResult[docIds.length];
+    }
+
+    int size() {
+        return docIds.length;
+    }
+
+    int getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * @return true if the results ranked cover the first {@code end} matching documents.
+     */
+    boolean covers(long end) {
+        return docIds.length >= Math.min(end, totalHits);
+    }
+
+    int getDocId(int rank) {
+        return docIds[rank];
+    }
+
+    double getScore(int rank) {
+        return scores[rank];
+    }
+
+    synchronized SearchResult getResolved(int rank) {
+        return resolved[rank];
+    }
+
+    synchronized void setResolved(int rank, SearchResult result) {
+        resolved[rank] = result;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+import java.util.List;
+import jchmlib.AbstractIndexSearcher.SearchResult;
+
+/**
+ * A page of search results, see
+ * {@link AbstractIndexSearcher#search(String, boolean, boolean, int, int)}.
+ */
+public class SearchResults {
+
+    private final List<SearchResult> results;
+    private final int totalHits;
+    private final int offset;
+    private final String nextCursor;
+
+    SearchResults(List<SearchResult> results, int totalHits, int offset, String nextCursor) {
+        this.results = results;
+        this.totalHits = totalHits;
+        this.offset = offset;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return results of this page, ordered by relevance.
+     */
+    public List<SearchResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the number of documents matching the query.
+     */
+    public int getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * @return the rank of the first result of this page.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return an opaque cursor for the next page,
+     * see {@link AbstractIndexSearcher#searchByCursor(String, int)},
+     * or null if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+import java.util.Arrays;
+
+/**
+ * Splits text into words, for both searching and indexing.
+ * <p>
+ * A word is a run of ASCII letters, digits and extra word characters (see
+ * {@link #setWordChars(String)}), converted to lower case. Any other letter or digit,
+ * like a CJK character, is a word by itself. All other characters separate words.
+ * <p>
+ * Optionally, runs of CJK characters (see {@link #isCjk(char)}) are split into overlapping
+ * bigrams instead, followed by the last character of the run: {@code ABCD} gives
+ * {@code AB BC CD D}. There is still one word per character, so that the locations of
+ * words are the same in both modes, and every character starts a word. Bigrams are
+ * much rarer than single characters, so that phrases of CJK characters are found
+ * by going through far fewer postings.
+ * <p>
+ * Words are passed to a {@link TokenHandler} in a reused buffer, so that no string is created
+ * unless the handler wants one. A tokenizer can be shared by threads once it is set up,
+ * but each thread needs its own {@link Scanner}. The mode of CJK characters is fixed
+ * when the tokenizer is created, see {@link #withCjkBigrams(boolean)}.
+ */
+public class Tokenizer {
+
+    /**
+     * Character classes, see {@link #getCharClass(char)}.
+     */
+    public static final int SEPARATOR = 0;
+    public static final int WORD = 1;
+    public static final int SINGLE = 2;
+
+    private static final byte[] DEFAULT_CHAR_CLASSES = new byte[Character.MAX_VALUE + 1];
+
+    static {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (Character.isLetterOrDigit((char) c)) {
+                DEFAULT_CHAR_CLASSES[c] = (byte) (c < 0x80 ? WORD : SINGLE);
+            }
+        }
+    }
+
+    private byte[] charClasses = DEFAULT_CHAR_CLASSES;
+    private final boolean cjkBigrams;
+    /**
+     * Stop words in an open addressing hash table.
+     */
+    private char[][] stopWordTable = new char[16][];
+    private int stopWordCount = 0;
+
+    public Tokenizer() {
+        cjkBigrams = false;
+    }
+
+    private Tokenizer(Tokenizer settings, boolean cjkBigrams) {
+        this.cjkBigrams = cjkBigrams;
+        // the class table is replaced rather than changed, and so are the stop words
+        charClasses = settings.charClasses;
+        stopWordTable = settings.stopWordTable.clone();
+        stopWordCount = settings.stopWordCount;
+    }
+
+    /**
+     * @param wordChars characters to be treated as letters, besides letters and digits.
+     */
+    public void setWordChars(String wordChars) {
+        if (wordChars == null || wordChars.length() == 0) {
+            charClasses = DEFAULT_CHAR_CLASSES;
+            return;
+        }
+        byte[] classes = DEFAULT_CHAR_CLASSES.clone();
+        for (int i = 0; i < wordChars.length(); i++) {
+            char c = wordChars.charAt(i);
+            classes[c] = (byte) (c < 0x80 || Character.isHighSurrogate(c)
+                    || Character.isLowSurrogate(c) ? WORD : SINGLE);
+        }
+        charClasses = classes;
+    }
+
+    /**
+     * @param cjkBigrams whether to split runs of CJK characters into bigrams.
+     * @return a copy of this tokenizer, with its word characters and current stop words.
+     */
+    public Tokenizer withCjkBigrams(boolean cjkBigrams) {
+        return new Tokenizer(this, cjkBigrams);
+    }
+
+    public boolean isCjkBigrams() {
+        return cjkBigrams;
+    }
+
+    /**
+     * @return whether the character is a Han ideograph, a kana or a Hangul syllable,
+     * which are written without spaces between words.
+     */
+    public static boolean isCjk(char c) {
+        return (c >= 0x3040 && c <= 0x30ff) // Hiragana, Katakana
+                || (c >= 0x3400 && c <= 0x4dbf) // CJK Unified Ideographs Extension A
+                || (c >= 0x4e00 && c <= 0x9fff) // CJK Unified Ideographs
+                || (c >= 0xac00 && c <= 0xd7af) // Hangul Syllables
+                || (c >= 0xf900 && c <= 0xfaff) // CJK Compatibility Ideographs
+                || (c >= 0xff66 && c <= 0xff9f); // Halfwidth Katakana
+    }
+
+    public void addStopWord(String word) {
+        if (isStopWord(word.toCharArray(), word.length())) {
+            return;
+        }
+        if ((stopWordCount + 1) * 2 > stopWordTable.length) {
+            char[][] oldTable = stopWordTable;
+            stopWordTable = new char[oldTable.length * 2][];
+            for (char[] stopWord : oldTable) {
+                if (stopWord != null) {
+                    insertStopWord(stopWord);
+                }
+            }
+        }
+        insertStopWord(word.toCharArray());
+        stopWordCount++;
+    }
+
+    private void insertStopWord(char[] word) {
+        int mask = stopWordTable.length - 1;
+        int i = hash(word, word.length) & mask;
+        while (stopWordTable[i] != null) {
+            i = (i + 1) & mask;
+        }
+        stopWordTable[i] = word;
+    }
+
+    public boolean isStopWord(char[] word, int length) {
+        if (stopWordCount == 0) {
+            return false;
+        }
+        int mask = stopWordTable.length - 1;
+        int i = hash(word, length) & mask;
+        char[] stopWord;
+        while ((stopWord = stopWordTable[i]) != null) {
+            if (equals(stopWord, word, length)) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean isStopWord(String word) {
+        return isStopWord(word.toCharArray(), word.length());
+    }
+
+    /**
+     * @return a hash of the word characters and stop words, which changes
+     * when text would be tokenized differently.
+     */
+    public int getSettingsHash() {
+        int h = Arrays.hashCode(charClasses) + (cjkBigrams ? 1 : 0);
+        // stop words in any order
+        for (char[] stopWord : stopWordTable) {
+            if (stopWord != null) {
+                h += hash(stopWord, stopWord.length);
+            }
+        }
+        return h;
+    }
+
+    private static int hash(char[] word, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + word[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(char[] stopWord, char[] word, int length) {
+        if (stopWord.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (stopWord[i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@link #WORD} for a character of a word, {@link #SINGLE} for a character
+     * which is a word by itself, or {@link #SEPARATOR}.
+     */
+    public int getCharClass(char c) {
+        return charClasses[c];
+    }
+
+    public Scanner newScanner(TokenHandler handler) {
+        return new Scanner(handler);
+    }
+
+    public void tokenize(CharSequence text, TokenHandler handler) {
+        Scanner scanner = new Scanner(handler);
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            scanner.add(text.charAt(i));
+        }
+        scanner.end();
+    }
+
+    public interface TokenHandler {
+
+        /**
+         * @param word the word, in a buffer which is only valid during the call.
+         * @param length the length of the word.
+         */
+        void onToken(char[] word, int length);
+    }
+
+    /**
+     * Assembles words from characters fed one by one.
+     */
+    public class Scanner {
+
+        private final TokenHandler handler;
+        private char[] buffer = new char[32];
+        private int length = 0;
+        /**
+         * the last CJK character of the current run, and the length of the run.
+         */
+        private char lastCjk;
+        private int cjkRunLength = 0;
+        private boolean runTail = false;
+
+        private Scanner(TokenHandler handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Adds a character, passing the words it completes to the handler.
+         */
+        public void add(char c) {
+            int charClass = charClasses[c];
+            if (charClass == SINGLE && cjkBigrams && isCjk(c)) {
+                endWord();
+                if (cjkRunLength > 0) {
+                    buffer[0] = lastCjk;
+                    buffer[1] = c;
+                    handler.onToken(buffer, 2);
+                }
+                lastCjk = c;
+                cjkRunLength++;
+                return;
+            }
+            if (charClass == WORD) {
+                endCjkRun();
+                if (length == buffer.length) {
+                    char[] newBuffer = new char[buffer.length * 2];
+                    System.arraycopy(buffer, 0, newBuffer, 0, length);
+                    buffer = newBuffer;
+                }
+                buffer[length++] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+                return;
+            }
+
+            end();
+            if (charClass == SINGLE) {
+                buffer[0] = c;
+                handler.onToken(buffer, 1);
+            }
+        }
+
+        /**
+         * Passes the current word, if any, to the handler.
+         */
+        public void end() {
+            endWord();
+            endCjkRun();
+        }
+
+        private void endWord() {
+            if (length > 0) {
+                int wordLength = length;
+                length = 0;
+                handler.onToken(buffer, wordLength);
+            }
+        }
+
+        private void endCjkRun() {
+            if (cjkRunLength > 0) {
+                runTail = cjkRunLength > 1;
+                cjkRunLength = 0;
+                buffer[0] = lastCjk;
+                handler.onToken(buffer, 1);
+                runTail = false;
+            }
+        }
+
+        /**
+         * @return whether the word being passed to the handler is the character ending
+         * a run of CJK characters, after the bigram ending with it.
+         * It can be left out of a query, unless words follow it in a phrase.
+         */
+        public boolean isRunTail() {
+            return runTail;
+        }
+    }
+}
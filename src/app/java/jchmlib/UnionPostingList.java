@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package jchmlib;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges posting lists with a heap ordered by their current document IDs (a k-way merge).
+ */
+class UnionPostingList extends PostingList {
+
+    private static final Comparator<PostingList> DOC_ORDER = new Comparator<PostingList>() {
+        @Override
+        public int compare(PostingList p1, PostingList p2) {
+            int doc1 = p1.docId();
+            int doc2 = p2.docId();
+            return doc1 < doc2 ? -1 : (doc1 == doc2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * lists positioned after the current document.
+     */
+    private final PriorityQueue<PostingList> queue;
+    /**
+     * lists positioned on the current document.
+     */
+    private final PostingList[] matching;
+    private final int size;
+    private int matchingCount = 0;
+    private int docId = -1;
+    private int[] positions = null;
+
+    UnionPostingList(List<PostingList> lists) {
+        queue = new PriorityQueue<PostingList>(Math.max(lists.size(), 1), DOC_ORDER);
+        matching = new PostingList[lists.size()];
+        int size = 0;
+        for (PostingList list : lists) {
+            size += list.size();
+            // lists which haven't started are positioned on -1, like this one
+            matching[matchingCount++] = list;
+        }
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int docId() {
+        return docId;
+    }
+
+    @Override
+    public int nextDoc() {
+        if (docId == NO_MORE_DOCS) {
+            return docId;
+        }
+        for (int i = 0; i < matchingCount; i++) {
+            if (matching[i].nextDoc() != NO_MORE_DOCS) {
+                queue.add(matching[i]);
+            }
+        }
+        return collectMatching();
+    }
+
+    @Override
+    public int advance(int target) {
+        if (docId >= target) {
+            return docId;
+        }
+        for (int i = 0; i < matchingCount; i++) {
+            if (matching[i].advance(target) != NO_MORE_DOCS) {
+                queue.add(matching[i]);
+            }
+        }
+        matchingCount = 0;
+        while (!queue.isEmpty() && queue.peek().docId() < target) {
+            PostingList list = queue.poll();
+            if (list.advance(target) != NO_MORE_DOCS) {
+                queue.add(list);
+            }
+        }
+        return collectMatching();
+    }
+
+    private int collectMatching() {
+        matchingCount = 0;
+        positions = null;
+        if (queue.isEmpty()) {
+            docId = NO_MORE_DOCS;
+            return docId;
+        }
+        docId = queue.peek().docId();
+        while (!queue.isEmpty() && queue.peek().docId() == docId) {
+            matching[matchingCount++] = queue.poll();
+        }
+        return docId;
+    }
+
+    @Override
+    public int frequency() {
+        int frequency = 0;
+        for (int i = 0; i < matchingCount; i++) {
+            frequency += matching[i].frequency();
+        }
+        return frequency;
+    }
+
+    @Override
+    public int[] positions() {
+        if (positions == null) {
+            positions = matching[0].positions();
+            for (int i = 1; i < matchingCount; i++) {
+                positions = PositionLists.merge(positions, matching[i].positions());
+            }
+        }
+        return positions;
+    }
+}
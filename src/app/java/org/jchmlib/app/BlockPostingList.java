@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import jchmlib.PostingList;
+
+/**
+ * Iterates postings in the block format written by {@link BlockPostingsWriter}.
+ * <p>
+ * Only the skip entries are read up front. A block is decoded when the iteration
+ * enters it, and its positions only when they are asked for, so
+ * {@link #advance(int)} skips whole blocks of a long list without decoding them.
+ * <p>
+ * Positions left out of indexes before version 5 are loaded by {@link #loadPositions(int)}.
+ */
+class BlockPostingList extends PostingList {
+
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int blockCount;
+    private final int[] blockLastDocIds;
+    private final int[] blockDocCounts;
+    private final int[] blockDocStarts;
+    private final int[] blockPositionStarts;
+
+    private int block = -1;
+    private int blockDocCount = 0;
+    private int index = -1;
+    private int docId = -1;
+    private final int[] docIds;
+    private final int[] frequencies;
+
+    private int positionsBlock = -1;
+    private final int[] positionCounts;
+    private final int[] positionStarts;
+    private int[] positions = NO_POSITIONS;
+
+    /**
+     * @param buffer the postings of a word, from position 0 to the limit of the buffer.
+     * Only absolute gets are used.
+     */
+    BlockPostingList(ByteBuffer buffer) {
+        this.buffer = buffer;
+        ByteBuffer header = buffer.duplicate();
+        header.position(0);
+        size = Varint.readUnsignedVarInt(header);
+        blockCount = Varint.readUnsignedVarInt(header);
+
+        blockLastDocIds = new int[blockCount];
+        blockDocCounts = new int[blockCount];
+        blockDocStarts = new int[blockCount];
+        blockPositionStarts = new int[blockCount];
+        int[] positionLengths = new int[blockCount];
+        int lastDocId = 0;
+        int maxBlockDocCount = 0;
+        int docStart = 0;
+        for (int b = 0; b < blockCount; b++) {
+            lastDocId += Varint.readUnsignedVarInt(header);
+            blockLastDocIds[b] = lastDocId;
+            blockDocCounts[b] = Varint.readUnsignedVarInt(header);
+            maxBlockDocCount = Math.max(maxBlockDocCount, blockDocCounts[b]);
+            blockDocStarts[b] = docStart;
+            docStart += Varint.readUnsignedVarInt(header);
+            positionLengths[b] = Varint.readUnsignedVarInt(header);
+        }
+        // sections follow the skip entries, doc sections first
+        int sectionsStart = header.position();
+        int positionStart = sectionsStart + docStart;
+        for (int b = 0; b < blockCount; b++) {
+            blockDocStarts[b] += sectionsStart;
+            blockPositionStarts[b] = positionStart;
+            positionStart += positionLengths[b];
+        }
+
+        docIds = new int[maxBlockDocCount];
+        frequencies = new int[maxBlockDocCount];
+        positionCounts = new int[maxBlockDocCount];
+        positionStarts = new int[maxBlockDocCount + 1];
+    }
+
+    /**
+     * Loads positions left out of the index.
+     */
+    protected int[] loadPositions(int docId) {
+        return NO_POSITIONS;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int docId() {
+        return docId;
+    }
+
+    @Override
+    public int nextDoc() {
+        if (docId == NO_MORE_DOCS) {
+            return docId;
+        }
+        index++;
+        if (index >= blockDocCount) {
+            if (block + 1 >= blockCount) {
+                docId = NO_MORE_DOCS;
+                return docId;
+            }
+            loadBlock(block + 1);
+        }
+        docId = docIds[index];
+        return docId;
+    }
+
+    @Override
+    public int advance(int target) {
+        if (docId >= target) {
+            return docId;
+        }
+        if (block < 0 || blockLastDocIds[block] < target) {
+            int b = findBlock(Math.max(block + 1, 0), target);
+            if (b == blockCount) {
+                docId = NO_MORE_DOCS;
+                return docId;
+            }
+            loadBlock(b);
+        }
+        // the last document of the block is not less than target
+        while (docIds[index] < target) {
+            index++;
+        }
+        docId = docIds[index];
+        return docId;
+    }
+
+    /**
+     * @return the first block from start whose last document is not less than target,
+     * or blockCount if there is none.
+     */
+    private int findBlock(int start, int target) {
+        int low = start;
+        int high = blockCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blockLastDocIds[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void loadBlock(int b) {
+        block = b;
+        blockDocCount = blockDocCounts[b];
+        index = 0;
+        int position = GroupVarint.read(buffer, blockDocStarts[b], docIds, 0, blockDocCount);
+        GroupVarint.read(buffer, position, frequencies, 0, blockDocCount);
+        for (int i = 1; i < blockDocCount; i++) {
+            docIds[i] += docIds[i - 1];
+        }
+    }
+
+    @Override
+    public int frequency() {
+        return frequencies[index];
+    }
+
+    /**
+     * @return positions of the current document saved in the index,
+     * which may be fewer than its frequency.
+     */
+    int[] storedPositions() {
+        if (positionsBlock != block) {
+            loadBlockPositions();
+        }
+        return Arrays.copyOfRange(positions, positionStarts[index], positionStarts[index + 1]);
+    }
+
+    @Override
+    public int[] positions() {
+        int[] stored = storedPositions();
+        if (stored.length == 0 && frequencies[index] > 0) {
+            return loadPositions(docId);
+        }
+        return stored;
+    }
+
+    private void loadBlockPositions() {
+        positionsBlock = block;
+        int position = GroupVarint.read(buffer, blockPositionStarts[block],
+                positionCounts, 0, blockDocCount);
+        int total = 0;
+        for (int i = 0; i < blockDocCount; i++) {
+            positionStarts[i] = total;
+            total += positionCounts[i];
+        }
+        positionStarts[blockDocCount] = total;
+
+        if (positions.length < total) {
+            positions = new int[Math.max(total, positions.length * 2)];
+        }
+        GroupVarint.read(buffer, position, positions, 0, total);
+        for (int i = 0; i < blockDocCount; i++) {
+            for (int k = positionStarts[i] + 1; k < positionStarts[i + 1]; k++) {
+                positions[k] += positions[k - 1];
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import jchmlib.PostingList;
+
+/**
+ * Encodes the postings of a word in the block format of index version 2.
+ * <p>
+ * Documents are grouped in blocks of up to {@link #BLOCK_SIZE}. The postings of a word are
+ * <pre>
+ * document count, block count (varints)
+ * a skip entry per block: last doc ID delta, document count, doc bytes, position bytes (varints)
+ * doc section of each block: doc IDs, frequencies (group varints)
+ * position section of each block: position counts, position deltas (group varints)
+ * </pre>
+ * The first doc ID of a block is absolute and the others are deltas, so that a block
+ * can be decoded, or copied, without the blocks before it. Position deltas restart
+ * at each document. Since index version 5, every position is stored. Before, a document
+ * could have no positions at all (for very frequent words), or fewer than its frequency.
+ * <p>
+ * A writer is reused for one word after another, see {@link #writeTo(DataOutputStream)}.
+ * Postings of a word from several partitions are joined by {@link #copyBlocks(ByteBuffer)},
+ * without decoding them.
+ */
+class BlockPostingsWriter {
+
+    static final int BLOCK_SIZE = 128;
+
+    private final int[] docIds = new int[BLOCK_SIZE];
+    private final int[] frequencies = new int[BLOCK_SIZE];
+    private final int[] positionCounts = new int[BLOCK_SIZE];
+    private int[] positions = new int[1024];
+    private int blockDocCount = 0;
+    private int blockPositionCount = 0;
+    private int lastPosition = 0;
+
+    private int docCount = 0;
+    private int blockCount = 0;
+    private int lastBlockDocId = 0;
+    private final ByteArrayOutputStream skipBytes = new ByteArrayOutputStream();
+    private final DataOutputStream skipOut = new DataOutputStream(skipBytes);
+    private final ByteArrayOutputStream docBytes = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream positionBytes = new ByteArrayOutputStream();
+    private final byte[] transferBuffer = new byte[8192];
+
+    /**
+     * Adds a document, whose ID must be greater than the ones added before.
+     */
+    void startDocument(int docId, int frequency) throws IOException {
+        if (blockDocCount == BLOCK_SIZE) {
+            flushBlock();
+        }
+        docIds[blockDocCount] = docId;
+        frequencies[blockDocCount] = frequency;
+        positionCounts[blockDocCount] = 0;
+        blockDocCount++;
+        docCount++;
+        lastPosition = 0;
+    }
+
+    /**
+     * Adds a position to the current document, in ascending order.
+     */
+    void addPosition(int position) {
+        if (blockPositionCount == positions.length) {
+            positions = Arrays.copyOf(positions, blockPositionCount * 2);
+        }
+        positions[blockPositionCount++] = position - lastPosition;
+        lastPosition = position;
+        positionCounts[blockDocCount - 1]++;
+    }
+
+    int getDocCount() {
+        return docCount;
+    }
+
+    private void flushBlock() throws IOException {
+        int lastDocId = docIds[blockDocCount - 1];
+        for (int i = blockDocCount - 1; i > 0; i--) {
+            docIds[i] -= docIds[i - 1];
+        }
+
+        int docStart = docBytes.size();
+        GroupVarint.write(docIds, 0, blockDocCount, docBytes);
+        GroupVarint.write(frequencies, 0, blockDocCount, docBytes);
+        int positionStart = positionBytes.size();
+        GroupVarint.write(positionCounts, 0, blockDocCount, positionBytes);
+        GroupVarint.write(positions, 0, blockPositionCount, positionBytes);
+
+        Varint.writeUnsignedVarInt(lastDocId - lastBlockDocId, skipOut);
+        Varint.writeUnsignedVarInt(blockDocCount, skipOut);
+        Varint.writeUnsignedVarInt(docBytes.size() - docStart, skipOut);
+        Varint.writeUnsignedVarInt(positionBytes.size() - positionStart, skipOut);
+
+        lastBlockDocId = lastDocId;
+        blockCount++;
+        blockDocCount = 0;
+        blockPositionCount = 0;
+    }
+
+    /**
+     * Appends postings in this format, whose doc IDs are all greater than the ones
+     * added before.
+     * <p>
+     * Postings shorter than a block are decoded and added to the current block, so that
+     * joining many short lists does not leave many small blocks. Of longer postings, only
+     * the skip entries are rewritten, and the doc and position sections are copied as they are.
+     *
+     * @param postings the postings, from its position to its limit.
+     */
+    void copyBlocks(ByteBuffer postings) throws IOException {
+        ByteBuffer in = postings.duplicate();
+        int copiedDocCount = Varint.readUnsignedVarInt(in);
+        if (copiedDocCount < BLOCK_SIZE) {
+            BlockPostingList list = new BlockPostingList(postings.slice());
+            while (list.nextDoc() != PostingList.NO_MORE_DOCS) {
+                startDocument(list.docId(), list.frequency());
+                for (int position : list.storedPositions()) {
+                    addPosition(position);
+                }
+            }
+            return;
+        }
+
+        if (blockDocCount > 0) {
+            flushBlock();
+        }
+        int copiedBlockCount = Varint.readUnsignedVarInt(in);
+        int lastDocId = 0;
+        int docLength = 0;
+        int positionLength = 0;
+        for (int b = 0; b < copiedBlockCount; b++) {
+            lastDocId += Varint.readUnsignedVarInt(in);
+            if (lastDocId <= lastBlockDocId && blockCount > 0) {
+                throw new IOException("Documents are out of order: " + lastDocId);
+            }
+            Varint.writeUnsignedVarInt(lastDocId - lastBlockDocId, skipOut);
+            Varint.writeUnsignedVarInt(Varint.readUnsignedVarInt(in), skipOut);
+            int docBlockLength = Varint.readUnsignedVarInt(in);
+            Varint.writeUnsignedVarInt(docBlockLength, skipOut);
+            int positionBlockLength = Varint.readUnsignedVarInt(in);
+            Varint.writeUnsignedVarInt(positionBlockLength, skipOut);
+            docLength += docBlockLength;
+            positionLength += positionBlockLength;
+            lastBlockDocId = lastDocId;
+            blockCount++;
+        }
+        // all the doc sections, then all the position sections
+        transfer(in, docLength, docBytes);
+        transfer(in, positionLength, positionBytes);
+        docCount += copiedDocCount;
+    }
+
+    private void transfer(ByteBuffer in, int length, ByteArrayOutputStream out) {
+        while (length > 0) {
+            int chunk = Math.min(length, transferBuffer.length);
+            in.get(transferBuffer, 0, chunk);
+            out.write(transferBuffer, 0, chunk);
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Writes the postings added since the last call, and starts over for the next word.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        if (blockDocCount > 0) {
+            flushBlock();
+        }
+        Varint.writeUnsignedVarInt(docCount, out);
+        Varint.writeUnsignedVarInt(blockCount, out);
+        skipBytes.writeTo(out);
+        docBytes.writeTo(out);
+        positionBytes.writeTo(out);
+
+        docCount = 0;
+        blockCount = 0;
+        lastBlockDocId = 0;
+        skipBytes.reset();
+        docBytes.reset();
+        positionBytes.reset();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Progress of an index build, saved in a manifest next to the index after each partition,
+ * so that an interrupted build resumes after the last saved partition.
+ * <p>
+ * The manifest is a properties file holding the settings of the build (which must match
+ * for it to be resumed), the next document to process in storage order, the next
+ * document ID, and the document count and file size of each saved partition.
+ * It is written to a temporary file, then renamed, so it is always complete.
+ * A partition file is written before the manifest naming it, so files left over by
+ * an interrupted save are not in the manifest, and are deleted when the build resumes.
+ */
+class BuildCheckpoint {
+
+    private static final Logger LOG = Logger.getLogger(BuildCheckpoint.class.getName());
+
+    private final String indexPath;
+    private final Properties settings;
+    private int nextSequence = 0;
+    private int nextDocId = 0;
+    private final List<Integer> partitionDocCounts = new ArrayList<Integer>();
+    private final List<Long> partitionFileSizes = new ArrayList<Long>();
+
+    private BuildCheckpoint(String indexPath, Properties settings) {
+        this.indexPath = indexPath;
+        this.settings = settings;
+    }
+
+    /**
+     * Reads the manifest of the index, if any, and deletes partition files
+     * it does not cover.
+     *
+     * @param settings settings of the new build.
+     * @return the saved progress, or an empty checkpoint if the manifest is missing,
+     * unreadable, written with other settings, or if one of its partitions is damaged.
+     */
+    static BuildCheckpoint open(String indexPath, Properties settings) {
+        BuildCheckpoint checkpoint = new BuildCheckpoint(indexPath, settings);
+        try {
+            if (!checkpoint.load()) {
+                checkpoint = new BuildCheckpoint(indexPath, settings);
+            }
+        } catch (Exception e) {
+            LOG.info("Failed to read build manifest: " + e);
+            checkpoint = new BuildCheckpoint(indexPath, settings);
+        }
+        checkpoint.deleteOrphanPartitions();
+        return checkpoint;
+    }
+
+    /**
+     * Deletes the partition and merge files left by a finished build,
+     * which could not be deleted while they were mapped.
+     * Nothing is deleted while there is a manifest, for a build in progress or to resume.
+     */
+    static void deleteFinishedBuild(String indexPath) {
+        BuildCheckpoint checkpoint = new BuildCheckpoint(indexPath, new Properties());
+        if (!checkpoint.getManifestFile().exists()) {
+            checkpoint.deleteOrphanPartitions();
+        }
+    }
+
+    private boolean load() throws IOException {
+        File file = getManifestFile();
+        if (!file.exists()) {
+            return false;
+        }
+        Properties manifest = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            manifest.load(in);
+        } finally {
+            in.close();
+        }
+
+        for (Map.Entry<Object, Object> entry : settings.entrySet()) {
+            if (!entry.getValue().equals(manifest.getProperty((String) entry.getKey()))) {
+                LOG.info("Build settings changed: " + entry.getKey());
+                return false;
+            }
+        }
+
+        nextSequence = Integer.parseInt(manifest.getProperty("nextSequence"));
+        nextDocId = Integer.parseInt(manifest.getProperty("nextDocId"));
+        int partitionCount = Integer.parseInt(manifest.getProperty("partitions"));
+        for (int partitionID = 0; partitionID < partitionCount; partitionID++) {
+            int docCount = Integer.parseInt(
+                    manifest.getProperty("partition." + partitionID + ".docs"));
+            long fileSize = Long.parseLong(
+                    manifest.getProperty("partition." + partitionID + ".size"));
+            if (new File(getPartitionPath(partitionID)).length() != fileSize) {
+                LOG.info("Partition " + partitionID + " is missing or damaged");
+                return false;
+            }
+            partitionDocCounts.add(docCount);
+            partitionFileSizes.add(fileSize);
+        }
+        return true;
+    }
+
+    private void deleteOrphanPartitions() {
+        File index = new File(indexPath);
+        String prefix = index.getName() + ".";
+        File[] files = index.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            String suffix = name.substring(prefix.length());
+            boolean orphan;
+            if (suffix.length() > 0 && suffix.length() < 10 && isDigits(suffix)) {
+                orphan = Integer.parseInt(suffix) >= getPartitionCount();
+            } else {
+                orphan = suffix.equals("build.tmp") || suffix.startsWith("merge");
+            }
+            if (orphan && !file.delete()) {
+                LOG.info("Failed to delete " + file);
+            }
+        }
+    }
+
+    private static boolean isDigits(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String getPartitionPath(int partitionID) {
+        return indexPath + "." + partitionID;
+    }
+
+    /**
+     * @return the temporary file the partitions are merged into,
+     * and the prefix of intermediate merged files.
+     */
+    String getMergePath() {
+        return indexPath + ".merge";
+    }
+
+    private File getManifestFile() {
+        return new File(indexPath + ".build");
+    }
+
+    /**
+     * @return the position in storage order of the first document not in a saved partition.
+     */
+    int getNextSequence() {
+        return nextSequence;
+    }
+
+    int getNextDocId() {
+        return nextDocId;
+    }
+
+    int getPartitionCount() {
+        return partitionDocCounts.size();
+    }
+
+    int getDocCount() {
+        int docCount = 0;
+        for (int partitionDocCount : partitionDocCounts) {
+            docCount += partitionDocCount;
+        }
+        return docCount;
+    }
+
+    /**
+     * Records a saved partition, and saves the manifest.
+     *
+     * @param nextSequence position in storage order of the first document after the partition.
+     * @param nextDocId ID of the first document after the partition.
+     */
+    void addPartition(int nextSequence, int nextDocId, int docCount) throws IOException {
+        this.nextSequence = nextSequence;
+        this.nextDocId = nextDocId;
+        partitionDocCounts.add(docCount);
+        partitionFileSizes.add(
+                new File(getPartitionPath(partitionDocCounts.size() - 1)).length());
+        save();
+    }
+
+    private void save() throws IOException {
+        Properties manifest = new Properties();
+        manifest.putAll(settings);
+        manifest.setProperty("nextSequence", String.valueOf(nextSequence));
+        manifest.setProperty("nextDocId", String.valueOf(nextDocId));
+        manifest.setProperty("partitions", String.valueOf(partitionDocCounts.size()));
+        for (int partitionID = 0; partitionID < partitionDocCounts.size(); partitionID++) {
+            manifest.setProperty("partition." + partitionID + ".docs",
+                    String.valueOf(partitionDocCounts.get(partitionID)));
+            manifest.setProperty("partition." + partitionID + ".size",
+                    String.valueOf(partitionFileSizes.get(partitionID)));
+        }
+
+        File file = getManifestFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            manifest.store(out, "index build in progress");
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+            throw new IOException("Failed to save " + file);
+        }
+    }
+
+    /**
+     * Deletes the manifest, once the partitions are merged.
+     */
+    void delete() {
+        File file = getManifestFile();
+        if (file.exists() && !file.delete()) {
+            LOG.info("Failed to delete " + file);
+        }
+    }
+}
@@ -1,39 +1,154 @@
 package org.jchmlib.app;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Properties;
 import java.util.Set;
-import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 import jchmlib.AbstractIndexSearcher;
 import jchmlib.ChmCollectFilesEnumerator;
 import jchmlib.ChmFile;
 import jchmlib.ChmUnitInfo;
+import jchmlib.PostingList;
+import jchmlib.Tokenizer;
+import org.jchmlib.app.DocumentInverter.InvertedDocument;
 
 public class ChmIndexEngine extends AbstractIndexSearcher {
 
     private static final Logger LOG = Logger.getLogger(ChmIndexEngine.class.getName());
+    /**
+     * Version of the index files written, see {@link BlockPostingsWriter}
+     * and {@link TermDictionary}. Files of earlier versions can still be read,
+     * down to {@link #MIN_INDEX_VERSION}. Before version 6, the document table was a list
+     * of document IDs, urls and titles, see {@link DocumentTable} for the current one.
+     * Since version 7, the version is followed by flags, see {@link #FLAG_CJK_BIGRAMS}.
+     */
+    private static final int INDEX_VERSION = 7;
+    /**
+     * Earliest version of the index files read, the first with the positions of all words.
+     * Before, positions of frequent words had to be found by parsing the documents again,
+     * which no longer gives the positions of the parser which built the index.
+     * Older indexes are rebuilt.
+     */
+    private static final int MIN_INDEX_VERSION = 5;
+    /**
+     * Last version of the index files named after the CHM file instead of its fingerprint,
+     * see {@link #migrateNamedIndex(String)}.
+     */
+    private static final int LAST_NAMED_INDEX_VERSION = 5;
+    /**
+     * Flag of an index with runs of CJK characters indexed as bigrams,
+     * see {@link Tokenizer#withCjkBigrams(boolean)}.
+     */
+    private static final int FLAG_CJK_BIGRAMS = 1;
+    /**
+     * Maximum number of words a partial word is expanded to.
+     * The words found in the most documents are kept.
+     */
+    private static final int MAX_PREFIX_EXPANSIONS = 64;
+    /**
+     * Number of recent prefix expansions kept.
+     */
+    private static final int PREFIX_CACHE_SIZE = 256;
+    /**
+     * A word in the title counts as this many occurrences of the word in the body.
+     */
+    private static final int TITLE_BOOST = 3;
+
+    /**
+     * Capacity of the queues between build stages.
+     */
+    private static final int STAGE_QUEUE_SIZE = 64;
+    /**
+     * Maximum number of documents between decoding and writing.
+     */
+    private static final int MAX_DOCUMENTS_IN_FLIGHT = 512;
+    /**
+     * Maximum number of files merged at once.
+     */
+    private static final int MAX_MERGE_WIDTH = 16;
+    /**
+     * How often the documents indexed so far are saved as a partition while building,
+     * even below the memory budget, so that they can be searched.
+     */
+    private static final long SEGMENT_FLUSH_MILLIS = 3000;
+    /**
+     * How far files being merged are read ahead of the merge, in bytes.
+     */
+    private static final int READ_AHEAD_WINDOW = 4 << 20;
+    /**
+     * System property turning CJK bigrams on for new indexes, see {@link #setCjkBigrams(boolean)}.
+     */
+    private static final String CJK_BIGRAMS_PROPERTY = "org.jchmlib.app.ChmIndexEngine.cjkBigrams";
+    /**
+     * System property overriding the default memory budget, in bytes.
+     */
+    private static final String MEMORY_BUDGET_PROPERTY =
+            "org.jchmlib.app.ChmIndexEngine.memoryBudget";
+    private static volatile long defaultMemoryBudget = Long.getLong(MEMORY_BUDGET_PROPERTY,
+            Math.min(64L << 20, Runtime.getRuntime().maxMemory() / 4));
+    /**
+     * Orders objects by where they are stored, so that objects sharing a compressed block
+     * are fetched together.
+     */
+    private static final Comparator<ChmUnitInfo> STORAGE_ORDER = new Comparator<ChmUnitInfo>() {
+        @Override
+        public int compare(ChmUnitInfo ui1, ChmUnitInfo ui2) {
+            if (ui1.getSpace() != ui2.getSpace()) {
+                return ui1.getSpace() < ui2.getSpace() ? -1 : 1;
+            }
+            return ui1.getStart() < ui2.getStart() ? -1 : (ui1.getStart() == ui2.getStart() ? 0 : 1);
+        }
+    };
 
     private final AtomicReference<Integer> buildIndexStep = new AtomicReference<Integer>(-1);
+    private volatile long memoryBudget = 0;
+    private volatile BuildStatistics buildStatistics = new BuildStatistics(0);
     private final Set<String> textExtensions;
-    private final Set<String> highFreqWords = new HashSet<String>();
-    private IndexLoader loader = null;
+    /**
+     * Index files searched, with disjoint ranges of document IDs: the index,
+     * or the segments of a build in progress, see {@link SegmentMerger}.
+     */
+    private volatile IndexLoader[] segments = new IndexLoader[0];
+    private volatile IndexCache indexCache = IndexCache.getDefault();
+    private volatile BuildThrottle buildThrottle = null;
+    private volatile boolean cjkBigrams = Boolean.getBoolean(CJK_BIGRAMS_PROPERTY);
+    /**
+     * fingerprint of the index marked as open in the cache, if any.
+     */
+    private String openFingerprint = null;
     private ChmFile chmFile = null;
     private String chmFilePath = "";
 
@@ -41,7 +156,7 @@ public class ChmIndexEngine extends AbstractIndexSearcher {
         this.chmFile = chmFile;
         this.chmFilePath = chmFilePath;
 
-        wordChars = "$_'";
+        setWordChars("$_'");
 
         textExtensions = new HashSet<String>();
         textExtensions.add(".txt");
@@ -51,107 +166,120 @@ public class ChmIndexEngine extends AbstractIndexSearcher {
         textExtensions.add(".xhtml");
     }
 
-    public void close() {
-        try {
-            buildIndexStep.set(-1);
-        } catch (Exception ignored) {
-        }
+    /**
+     * Sets the default memory budget of engines without their own budget,
+     * see {@link #setMemoryBudget(long)}.
+     * It can also be set with the system property
+     * {@code org.jchmlib.app.ChmIndexEngine.memoryBudget}.
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = Math.max(bytes, 1);
     }
 
-    private void addToWord(char c, StringBuilder sbWord, List<String> words) {
-        boolean isMB = isMultibyteChar(c);
-        boolean isWordChar = Character.isLetterOrDigit(c) || wordChars.indexOf(c) >= 0;
-        if (!isMB && isWordChar) {
-            sbWord.append(c);
-        } else {
-            if (sbWord.length() > 0) {
-                String word = sbWord.toString().toLowerCase();
-                if (!stopWords.contains(word)) {
-                    words.add(word);
-                }
-                sbWord.setLength(0);
-            }
-            if (isMB && isWordChar) {
-                String word = String.valueOf(c);
-                if (!stopWords.contains(word)) {
-                    words.add(word);
-                }
-            }
-        }
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
     }
 
-    private List<String> parse(String origin) {
-        List<String> words = new ArrayList<String>();
+    /**
+     * Sets the estimated heap size of in-memory postings at which they are saved
+     * as a partition when building the index. A larger budget means fewer partitions to merge.
+     *
+     * @param bytes the budget, or 0 to use the default budget.
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = Math.max(bytes, 0);
+    }
 
-        ParseState state = ParseState.OUTSIDE_TAGS;
-        StringBuilder sbEntity = new StringBuilder();
-        StringBuilder sbWord = new StringBuilder();
+    public long getMemoryBudget() {
+        return memoryBudget > 0 ? memoryBudget : defaultMemoryBudget;
+    }
 
-        char quoteChar = '"';
-        for (int j = 0; j < origin.length(); j++) {
-            char c = origin.charAt(j);
-            switch (state) {
-                case IN_HTML_TAG:
-                    if (c == '"' || c == '\'') {
-                        state = ParseState.IN_QUOTES;
-                        quoteChar = c;
-                    } else if (c == '>') {
-                        state = ParseState.OUTSIDE_TAGS;
-                    }
-                    break;
-                case IN_QUOTES:
-                    if (c == quoteChar) {
-                        state = ParseState.IN_HTML_TAG;
-                    }
-                    break;
-                case IN_HTML_ENTITY:
-                    if (Character.isLetterOrDigit(c) || (sbEntity.length() == 1 && c == '#')) {
-                        sbEntity.append(c);
-                        break;
-                    }
+    /**
+     * @return statistics of the last (or current) index build.
+     */
+    public BuildStatistics getBuildStatistics() {
+        return buildStatistics;
+    }
 
-                    state = ParseState.OUTSIDE_TAGS;
+    /**
+     * Sets the cache holding the index file, {@link IndexCache#getDefault()} by default.
+     */
+    public void setIndexCache(IndexCache indexCache) {
+        this.indexCache = indexCache;
+    }
 
-                    if (c != ';' && c != '<') {
-                        if (sbEntity.length() <= 1) {
-                            addToWord('&', sbWord, words);
-                        }
-                        j--; // parse this character again, but in different state
-                        break;
-                    }
+    public IndexCache getIndexCache() {
+        return indexCache;
+    }
 
-                    if (c == ';') {
-                        sbEntity.append(c);
-                    }
-                    String entity = HtmlEntityParser.parse(sbEntity.toString());
-                    if (entity != null) {
-                        for (char c2 : entity.toCharArray()) {
-                            addToWord(c2, sbWord, words);
-                        }
-                    }
-                    break;
-                case OUTSIDE_TAGS:
-                    if (c == '<') {
-                        state = ParseState.IN_HTML_TAG;
-                        addToWord(' ', sbWord, words);
-                    } else if (c == '&') {
-                        state = ParseState.IN_HTML_ENTITY;
-                        sbEntity.setLength(0);
-                        sbEntity.append(c);
-                    } else {
-                        addToWord(c, sbWord, words);
-                    }
-                    break;
+    /**
+     * Sets whether new indexes split runs of CJK characters into overlapping bigrams,
+     * which makes CJK phrases much faster to search, and the index a bit larger.
+     * Searches follow the mode of the loaded index, whatever the setting.
+     * It can also be turned on with the system property
+     * {@code org.jchmlib.app.ChmIndexEngine.cjkBigrams}.
+     */
+    public void setCjkBigrams(boolean cjkBigrams) {
+        this.cjkBigrams = cjkBigrams;
+    }
+
+    public boolean isCjkBigrams() {
+        return cjkBigrams;
+    }
+
+    /**
+     * Sets what slows down the threads building the index, or null to build at full speed.
+     */
+    public void setBuildThrottle(BuildThrottle buildThrottle) {
+        this.buildThrottle = buildThrottle;
+    }
+
+    public BuildThrottle getBuildThrottle() {
+        return buildThrottle;
+    }
+
+    public void close() {
+        try {
+            buildIndexStep.set(-1);
+        } catch (Exception ignored) {
+        }
+        synchronized (this) {
+            if (openFingerprint != null) {
+                indexCache.close(openFingerprint);
+                openFingerprint = null;
             }
         }
+    }
 
-        addToWord(' ', sbWord, words);
-
-        return words;
+    /**
+     * Keeps the index from being evicted from the cache while it is used.
+     */
+    private synchronized void openInCache() {
+        String fingerprint = chmFile.getFingerprint();
+        if (fingerprint.equals(openFingerprint)) {
+            indexCache.touch(fingerprint);
+            return;
+        }
+        if (openFingerprint != null) {
+            indexCache.close(openFingerprint);
+        }
+        indexCache.open(fingerprint);
+        openFingerprint = fingerprint;
     }
 
+    /**
+     * @return whether there is something to search: the index, or the documents
+     * indexed so far by a build in progress.
+     */
     public boolean isSearchable() {
-        return buildIndexStep.get() == 100;
+        return segments.length > 0;
+    }
+
+    /**
+     * @return the number of index files searched, more than one while building.
+     */
+    public int getSegmentCount() {
+        return segments.length;
     }
 
     public int getBuildIndexStep() {
@@ -188,328 +316,400 @@ public class ChmIndexEngine extends AbstractIndexSearcher {
 
         LOG.info("Building index for " + chmFile.getTitle());
         buildIndexStep.set(0);
+        // the searches of the old index keep splitting queries their way
+        Tokenizer buildTokenizer = tokenizer.withCjkBigrams(cjkBigrams);
+        openInCache();
+
+        // load the titles before the extract threads look them up
+        chmFile.getTopicsTree();
 
         ChmCollectFilesEnumerator enumerator = new ChmCollectFilesEnumerator();
         chmFile.enumerate(ChmFile.CHM_ENUMERATE_USER, enumerator);
 
-        int totalFileCount = enumerator.files.size();
-        LOG.info("files count: " + totalFileCount);
-        int perStep = Math.max(totalFileCount / 100, 1);
-
-        HashMap<String, DocumentsForWord> wordToDocuments = new HashMap<String, DocumentsForWord>();
-        HashMap<Integer, String> docIdToUrl = new LinkedHashMap<Integer, String>();
+        List<ChmUnitInfo> files = new ArrayList<ChmUnitInfo>();
+        for (ChmUnitInfo ui : enumerator.files) {
+            if (isTextFile(ui)) {
+                files.add(ui);
+            }
+        }
+        // documents in the same compressed block are decoded one after another
+        Collections.sort(files, STORAGE_ORDER);
 
-        int filesProcessed = -1;
-        int docID = -1;
-        int partitionID = -1;
-        int partitionDocCount = 0;
-        long partitionWordCount = 0;
+        int totalFileCount = files.size();
+        LOG.info("files count: " + totalFileCount);
 
-        for (ChmUnitInfo ui : enumerator.files) {
-            filesProcessed++;
+        long startTime = System.currentTimeMillis();
+        BuildCheckpoint checkpoint = BuildCheckpoint.open(getIndexFilePath(),
+                getBuildSettings(totalFileCount, buildTokenizer));
+        if (checkpoint.getPartitionCount() > 0) {
+            LOG.info(String.format("Resuming index build at file %d/%d, after %d partitions",
+                    checkpoint.getNextSequence(), totalFileCount, checkpoint.getPartitionCount()));
+        }
+        BuildStatistics statistics = new BuildStatistics(getMemoryBudget());
+        statistics.setResumedDocCount(checkpoint.getDocCount());
+        statistics.setFileCounts(totalFileCount, checkpoint.getNextSequence());
+        buildStatistics = statistics;
 
-            if (buildIndexStep.get() < 0) { // interrupted
-                break;
-            }
-            if (filesProcessed % perStep == 0) {
-                buildIndexStep.set(Math.min(buildIndexStep.get() + 1, 99));
-                LOG.info("Building index step " + buildIndexStep.get());
-                LOG.info("total word count " + partitionWordCount);
-                LOG.info("filesProcessed " + filesProcessed + "/" + totalFileCount + " docID "
-                        + docID);
-
-                if (partitionDocCount >= 5000 || partitionWordCount >= 10000000) { // FIXME
-                    partitionID++;
-                    saveIndexPartition(partitionID, docIdToUrl, wordToDocuments);
-                    wordToDocuments = new LinkedHashMap<String, DocumentsForWord>();
-                    docIdToUrl = new LinkedHashMap<Integer, String>();
-                    partitionDocCount = 0;
-                    partitionWordCount = 0;
+        SegmentMerger merger = new SegmentMerger(checkpoint);
+        try {
+            BuildPipeline pipeline = new BuildPipeline(files, buildTokenizer, statistics,
+                    checkpoint, merger);
+            int partitionCount;
+            try {
+                // partitions saved before an interruption are searchable at once
+                for (int partitionID = 0; partitionID < checkpoint.getPartitionCount();
+                        partitionID++) {
+                    merger.add(checkpoint.getPartitionPath(partitionID));
                 }
+                partitionCount = pipeline.run();
+            } finally {
+                pipeline.shutdown();
             }
-
-            if (!isTextFile(ui)) {
-                continue;
+            for (StageCounters counters : pipeline.stages) {
+                LOG.info("Build stage " + counters);
             }
 
-            String content = chmFile.retrieveObjectAsString(ui);
-            if (content == null || content.length() == 0) {
-                continue;
+            if (partitionCount < 0) {
+                LOG.info("Stopped building index for " + chmFile.getTitle());
+                return;
             }
 
-            List<String> words = parse(content);
-            if (words.size() == 0) {
-                continue;
-            }
-            partitionWordCount += words.size();
+            long mergeStartTime = System.currentTimeMillis();
+            merger.finish();
+            statistics.setMergeTime(System.currentTimeMillis() - mergeStartTime);
+        } finally {
+            merger.shutdown();
+        }
+        statistics.setBuildTime(System.currentTimeMillis() - startTime);
+        LOG.info("Build statistics: " + statistics);
 
-            partitionDocCount++;
-            docID++;
-            docIdToUrl.put(docID, ui.getPath());
+        LOG.info("Finished building index for " + chmFile.getTitle());
 
-            HashMap<String, LocationsInDocument> wordToLocations = new HashMap<String, LocationsInDocument>();
-            int wordLocation = -1;
-            for (String word : words) {
-                wordLocation++;
+        indexCache.evict();
+    }
 
-                if (word.length() > 16 || stopWords.contains(word)) {
-                    continue;
-                }
+    /**
+     * @return what a build depends on, besides the content of the CHM file,
+     * which is in the name of the index.
+     * A build is only resumed with the same settings.
+     */
+    private Properties getBuildSettings(int fileCount, Tokenizer buildTokenizer) {
+        Properties settings = new Properties();
+        settings.setProperty("version", String.valueOf(INDEX_VERSION));
+        settings.setProperty("files", String.valueOf(fileCount));
+        settings.setProperty("textExtensions", new TreeSet<String>(textExtensions).toString());
+        settings.setProperty("tokenizer", String.valueOf(buildTokenizer.getSettingsHash()));
+        return settings;
+    }
 
-                LocationsInDocument locationsInDocument;
-                if (wordToLocations.containsKey(word)) {
-                    locationsInDocument = wordToLocations.get(word);
-                } else {
-                    locationsInDocument = new LocationsInDocument(docID, ui.getPath());
-                    wordToLocations.put(word, locationsInDocument);
-                }
-                if (!highFreqWords.contains(word)) {
-                    locationsInDocument.locations.add(wordLocation);
-                }
-                locationsInDocument.totalFrequency += 1;
+    @Override
+    protected int estimateDocumentFrequency(String word, boolean wholeWords, boolean titlesOnly) {
+        int docCount = 0;
+        for (IndexLoader segment : segments) {
+            docCount += estimateDocumentFrequency(segment, DocumentInverter.TITLE_FIELD + word,
+                    wholeWords);
+            if (!titlesOnly) {
+                docCount += estimateDocumentFrequency(segment, word, wholeWords);
             }
+        }
+        return docCount;
+    }
 
-            for (Entry<String, LocationsInDocument> entry : wordToLocations.entrySet()) {
-                String word = entry.getKey();
-                LocationsInDocument locationsInDocument = entry.getValue();
-
-                if (locationsInDocument.locations.size() > 500) {
-                    locationsInDocument.locations.clear();
-                }
-
-                DocumentsForWord documentsForWord;
-                if (wordToDocuments.containsKey(word)) {
-                    documentsForWord = wordToDocuments.get(word);
+    private int estimateDocumentFrequency(IndexLoader loader, String term, boolean wholeWords) {
+        if (wholeWords && !loader.isCjkPrefix(term)) {
+            return loader.getDocCount(term);
+        }
+        return loader.expandPrefix(term).docCount;
+    }
 
-                } else {
-                    documentsForWord = new DocumentsForWord();
-                    wordToDocuments.put(word, documentsForWord);
-                }
-                documentsForWord.documents.add(locationsInDocument);
-
-                // ignore locations of high frequency word
-                int wordDocCount = documentsForWord.documents.size();
-                if (wordDocCount > 1000 && wordDocCount >= partitionDocCount * 0.95) {
-                    // LOG.fine(String.format("high frequency word %s, %d/%d",
-                    // word, wordDocCount, partitionDocCount));
-                    for (LocationsInDocument lid : documentsForWord.documents) {
-                        lid.locations.clear();
-                    }
-                    highFreqWords.add(word);
+    /**
+     * Searches a word in titles, and also in the body unless titlesOnly is set,
+     * in all segments. Matches in titles are boosted, see {@link #TITLE_BOOST}.
+     */
+    @Override
+    protected PostingList searchSingleWord(String word, boolean wholeWords, boolean titlesOnly) {
+        // segments may be replaced while searching
+        IndexLoader[] segments = this.segments;
+        List<PostingList> lists = new ArrayList<PostingList>(2 * segments.length);
+        for (IndexLoader segment : segments) {
+            if (!titlesOnly) {
+                PostingList body = searchTerm(segment, word, wholeWords, 1);
+                if (body != null) {
+                    lists.add(body);
                 }
             }
+            PostingList titles = searchTerm(segment, DocumentInverter.TITLE_FIELD + word,
+                    wholeWords, titlesOnly ? 1 : TITLE_BOOST);
+            if (titles != null) {
+                lists.add(titles);
+            }
         }
-
-        partitionID++;
-        saveIndexPartition(partitionID, docIdToUrl, wordToDocuments);
-
-        mergeIndexPartitions(partitionID + 1);
-
-        LOG.info("Finished building index for " + chmFile.getTitle());
-
-        readIndex();
-    }
-
-    private Set<Integer> getLocations(String targetWord, String url) {
-        Set<Integer> locations = new HashSet<Integer>();
-
-        ChmUnitInfo ui = chmFile.resolveObject(url);
-        if (ui == null) {
-            return locations;
+        if (lists.size() == 0) {
+            return null;
         }
+        return PostingList.union(lists);
+    }
 
-        String content = chmFile.retrieveObjectAsString(ui);
-        if (content == null || content.length() == 0) {
-            return locations;
+    /**
+     * @param wholeWords if false, search all the terms starting with the given one.
+     * A single CJK character in an index of bigrams is always searched that way.
+     * @param boost factor applied to frequencies.
+     */
+    private PostingList searchTerm(IndexLoader loader, String term, boolean wholeWords,
+            int boost) {
+        if (wholeWords && !loader.isCjkPrefix(term)) {
+            return searchWholeWord(loader, term, boost);
         }
 
-        List<String> words = parse(content);
-        if (words.size() == 0) {
-            return locations;
+        PrefixExpansion expansion = loader.expandPrefix(term);
+        List<PostingList> lists = new ArrayList<PostingList>(expansion.words.length);
+        for (int i = 0; i < expansion.words.length; i++) {
+            lists.add(createPostingList(
+                    loader.getPostingsBuffer(expansion.offsets[i], expansion.lengths[i]), boost));
         }
-
-        int wordLocation = -1;
-        for (String word : words) {
-            wordLocation++;
-            if (word.equals(targetWord)) {
-                locations.add(wordLocation);
-            }
+        if (lists.size() == 0) {
+            return null;
         }
-
-        return locations;
+        return PostingList.union(lists);
     }
 
-    protected Set<String> getInitialResults(List<SubQuery> subQueries) {
-        List<String> words = new ArrayList<String>();
-        for (SubQuery subQuery : subQueries) {
-            words.add(subQuery.queryString);
+    private PostingList searchWholeWord(IndexLoader loader, String word, int boost) {
+        ByteBuffer buffer = loader.getPostingsBuffer(word);
+        if (buffer == null) {
+            return null;
         }
+        return createPostingList(buffer, boost);
+    }
 
-        Collections.sort(words, new Comparator<String>() {
+    private PostingList createPostingList(ByteBuffer buffer, final int boost) {
+        return new BlockPostingList(buffer) {
             @Override
-            public int compare(String o1, String o2) {
-                return new Integer(loader.getDocCount(o1)).compareTo(loader.getDocCount(o2));
-            }
-        });
-
-        Set<String> results = new HashSet<String>();
-        int subQueryStep = -1;
-        for (String word : words) {
-            subQueryStep++;
-
-            DocumentsForWord documentsForWord = loader.loadDocumentsForWord(word);
-            if (subQueryStep == 0) {
-                if (documentsForWord != null) {
-                    for (LocationsInDocument lid : documentsForWord.documents) {
-                        results.add(lid.url);
-                    }
-                } else {
-                    return results;
-                }
-            } else {
-                if (documentsForWord == null) {
-                    results.clear();
-                    return results;
-                } else {
-                    Set<String> newResults = new HashSet<String>();
-                    for (LocationsInDocument lid : documentsForWord.documents) {
-                        if (results.contains(lid.url)) {
-                            newResults.add(lid.url);
-                        }
-                    }
-                    results = newResults;
-                }
+            public int frequency() {
+                return super.frequency() * boost;
             }
-        }
-        return results;
+        };
     }
 
-    //FIXME: support partial word and title only search
     @Override
-    protected List<SearchResult> searchSingleWord(
-            String word, boolean wholeWords, boolean titlesOnly, Set<String> lastRunFiles) {
-        DocumentsForWord documentsForWord = loader.loadDocumentsForWord(word);
-        if (documentsForWord == null) {
-            return null;
+    protected int getDocumentCount() {
+        int docCount = 0;
+        for (IndexLoader segment : segments) {
+            docCount += segment.documents.size();
         }
+        return docCount;
+    }
 
-        List<SearchResult> results = new ArrayList<SearchResult>();
-
-        for (LocationsInDocument lid : documentsForWord.documents) {
-            String url = lid.url;
-            if (lastRunFiles.size() > 0 && !lastRunFiles.contains(url)) {
-                continue;
+    /**
+     * @return the segment holding the document, or null if none does.
+     */
+    private IndexLoader getSegment(int docId) {
+        for (IndexLoader segment : segments) {
+            DocumentTable documents = segment.documents;
+            if (docId >= documents.getFirstDocId()
+                    && docId - documents.getFirstDocId() < documents.size()) {
+                return segment;
             }
-            Set<Integer> locations =
-                    lid.locations.size() == 0 ? getLocations(word, url) : lid.locations;
-            results.add(new SearchResult(url, null, locations, lid.totalFrequency));
         }
+        return null;
+    }
+
+    @Override
+    protected String getUrl(int docId) {
+        IndexLoader segment = getSegment(docId);
+        return segment == null ? null : segment.documents.getUrl(docId);
+    }
 
-        return results;
+    /**
+     * The segments searched are all of one build, or the index, which split text the same way.
+     */
+    @Override
+    protected Tokenizer getQueryTokenizer() {
+        IndexLoader[] segments = this.segments;
+        return segments.length > 0 ? segments[0].tokenizer : tokenizer;
     }
 
     @Override
     protected void fixTopic(SearchResult result) {
-        if (chmFile != null) {
-            result.topic = chmFile.getTitleOfObject(result.url);
-        } else {
-            result.topic = result.url;
-        }
+        IndexLoader segment = getSegment(result.docId);
+        String title = segment == null ? null : segment.documents.getTitle(result.docId);
+        // the titles are stored in the index, so that the topics tree need not be loaded
+        result.topic = title != null ? title : result.url;
     }
 
     private String getIndexFilePath() {
-        String userHome = System.getProperty("user.home");
-        File chmwebDir = new File(userHome, ".chmweb");
-        //noinspection ResultOfMethodCallIgnored
-        chmwebDir.mkdirs();
+        return indexCache.getIndexPath(chmFile.getFingerprint());
+    }
+
+    /**
+     * Moves an index named after the CHM file, as written before indexes were named
+     * by fingerprint, to its place in the cache, so that it is used until it is rebuilt.
+     */
+    private void migrateNamedIndex(String path) {
+        File namedIndex = new File(indexCache.getDirectory(),
+                new File(chmFilePath).getName() + ".index");
+        if (new File(path).exists() || !namedIndex.isFile()) {
+            return;
+        }
+        try {
+            IndexLoader namedLoader = new IndexLoader();
+            namedLoader.read(namedIndex.getPath());
+            if (namedLoader.version > LAST_NAMED_INDEX_VERSION || !isIndexOf(namedLoader)) {
+                return;
+            }
+        } catch (Exception ignored) {
+            // not an index, or a corrupt one
+            return;
+        }
+        if (!namedIndex.renameTo(new File(path))) {
+            LOG.info("Failed to move " + namedIndex + " to " + path);
+            return;
+        }
+        LOG.info("Moved " + namedIndex + " to " + path);
+    }
 
-        File chm = new File(chmFilePath);
-        File index = new File(chmwebDir, chm.getName() + ".index");
-        return index.toString();
+    /**
+     * @return whether all documents of an index are in the CHM file,
+     * since different CHM files with the same name shared an index file.
+     */
+    private boolean isIndexOf(IndexLoader loader) {
+        DocumentTable.Cursor cursor = loader.documents.cursor();
+        while (cursor.next()) {
+            String url = cursor.getUrl();
+            if (url.length() > 0 && chmFile.resolveObject(url) == null) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void saveIndexPartition(int partitionID,
-            HashMap<Integer, String> docIdToUrl,
-            HashMap<String, DocumentsForWord> wordToDocuments) throws IOException {
-        String path = getIndexFilePath() + "." + partitionID;
-        LOG.info("Partition " + partitionID + " " + path);
+    private void saveIndexPartition(String path, int partitionID, InvertedPartition partition,
+            int flags, BuildStatistics statistics) throws IOException {
+        long startTime = System.currentTimeMillis();
+        LOG.info(String.format("Partition %d %s: %d documents, %d words, %d terms, ~%d KB",
+                partitionID, path, partition.getDocCount(), partition.getWordCount(),
+                partition.getTermCount(), partition.getMemoryUsage() / 1024));
 
         IndexWriter writer = new IndexWriter();
-        writer.open(path);
+        writer.open(path, flags);
 
-        writer.writeDocId2Url(docIdToUrl);
+        writer.writeDocuments(partition.documents);
 
-        SortedSet<String> words = new TreeSet<String>(wordToDocuments.keySet());
-        for (String word : words) {
-            DocumentsForWord documentsForWord = wordToDocuments.get(word);
-            writer.writeWord(word, documentsForWord);
+        for (int termId : partition.getSortedTermIds()) {
+            writer.writeWord(partition.getWord(termId), partition, termId);
         }
         writer.endLastWord();
 
         writer.writeDictionary();
         writer.close();
-    }
 
-    private void mergeIndexPartitions(int partitionCount) throws IOException {
-        String path = getIndexFilePath();
+        statistics.addPartition(partition.getDocCount(), partition.getMemoryUsage(),
+                new File(path).length(), System.currentTimeMillis() - startTime);
+    }
 
-        if (partitionCount == 1) {
-            String partitionPath = path + ".0";
-            File file1 = new File(partitionPath);
-            File file2 = new File(path);
-            //noinspection ResultOfMethodCallIgnored
-            file1.renameTo(file2);
-            return;
+    /**
+     * Merges segments into a temporary file, which replaces the index once complete.
+     * <p>
+     * At most {@link #MAX_MERGE_WIDTH} files are merged at once. With more segments,
+     * consecutive ones are merged into intermediate files first, level by level.
+     * The segments are left as they are, even a single one, since they are still searched,
+     * and the build can still resume from its partitions until the index is complete.
+     *
+     * @param paths the files of the segments, by increasing document IDs.
+     * @param intermediatePaths receives the intermediate files, to be deleted.
+     * @return the merged file.
+     */
+    private String mergeSegments(BuildCheckpoint checkpoint, List<String> paths,
+            List<String> intermediatePaths) throws IOException {
+        String path = checkpoint.getMergePath();
+        int level = 0;
+        while (paths.size() > MAX_MERGE_WIDTH) {
+            level++;
+            List<String> mergedPaths = new ArrayList<String>();
+            for (int start = 0; start < paths.size(); start += MAX_MERGE_WIDTH) {
+                List<String> group = paths.subList(start,
+                        Math.min(start + MAX_MERGE_WIDTH, paths.size()));
+                if (group.size() == 1) {
+                    mergedPaths.add(group.get(0));
+                    continue;
+                }
+                String mergedPath = path + "." + level + "." + mergedPaths.size();
+                mergeIndexFiles(group, mergedPath);
+                mergedPaths.add(mergedPath);
+                intermediatePaths.add(mergedPath);
+            }
+            paths = mergedPaths;
         }
+        mergeIndexFiles(paths, path);
+        return path;
+    }
 
-        HashMap<Integer, String> docIdToUrl = new HashMap<Integer, String>();
-        IndexLoader[] partitions = new IndexLoader[partitionCount];
-        for (int partitionID = 0; partitionID < partitionCount; partitionID++) {
-            String partitionPath = getIndexFilePath() + "." + partitionID;
-            IndexLoader partition = new IndexLoader();
-            partitions[partitionID] = partition;
-            partition.open(partitionPath);
+    /**
+     * Merges index files with increasing ranges of document IDs.
+     * <p>
+     * Words are taken in order from a priority queue of dictionary cursors.
+     * Document tables, and postings found in a single file, are copied byte for byte.
+     * Postings of a word found in several files are joined block by block.
+     * Nothing is decoded, and the files are read ahead of the merge by another thread.
+     */
+    private void mergeIndexFiles(List<String> paths, String path) throws IOException {
+        int fileCount = paths.size();
+        IndexLoader[] files = new IndexLoader[fileCount];
+        ReadAhead readAhead = new ReadAhead(READ_AHEAD_WINDOW);
+        PriorityQueue<MergeCursor> queue = new PriorityQueue<MergeCursor>(fileCount);
+        for (int k = 0; k < fileCount; k++) {
+            IndexLoader file = new IndexLoader();
+            files[k] = file;
+            file.openForMerge(paths.get(k));
+            if (file.flags != files[0].flags) {
+                throw new IOException("Cannot merge files tokenized differently");
+            }
 
-            for (Entry<Integer, String> entry : partition.docIdToUrl.entrySet()) {
-                docIdToUrl.put(entry.getKey(), entry.getValue());
+            int region = readAhead.add(file.buffer, file.postingOffset,
+                    file.postingOffset + file.postingLength);
+            MergeCursor cursor = new MergeCursor(k, file, file.dictionary.cursor(), region);
+            if (cursor.cursor.next()) {
+                queue.add(cursor);
             }
         }
 
-        IndexWriter writer = new IndexWriter();
-        writer.open(path);
-
-        writer.writeDocId2Url(docIdToUrl);
-
-        int currentIndex = 0;
-        String currentWord = "";
-        while (currentIndex != -1) {
-            currentIndex = -1;
-            for (int k = 0; k < partitionCount; k++) {
-                IndexLoader partition = partitions[k];
-                if (partition.hasNext()) {
-                    if (currentIndex == -1 || partition.getWord().compareTo(currentWord) < 0) {
-                        currentIndex = k;
-                        currentWord = partition.getWord();
-                    }
+        readAhead.start();
+        try {
+            IndexWriter writer = new IndexWriter();
+            // the files are all of one build
+            writer.open(path, files[0].flags);
+
+            writer.mergeDocuments(files);
+
+            List<MergeCursor> sources = new ArrayList<MergeCursor>(fileCount);
+            while (!queue.isEmpty()) {
+                sources.clear();
+                sources.add(queue.poll());
+                String word = sources.get(0).cursor.getWord();
+                while (!queue.isEmpty() && queue.peek().cursor.getWord().equals(word)) {
+                    sources.add(queue.poll());
                 }
-            }
 
-            if (currentIndex != -1) {
-                IndexLoader partition = partitions[currentIndex];
-                int docCount = partition.getDocCount(currentWord);
-                byte[] buf = partition.getPostings(currentWord);
-                writer.writeWord(currentWord, docCount, buf);
-                partition.advance();
+                for (MergeCursor source : sources) {
+                    TermDictionary.Cursor cursor = source.cursor;
+                    ByteBuffer postings = source.file.getPostingsBuffer(cursor);
+                    if (sources.size() == 1) {
+                        writer.copyWord(word, cursor.getDocCount(), postings);
+                    } else {
+                        writer.appendWord(word, cursor.getDocCount(), postings);
+                    }
+                    readAhead.setReadPosition(source.region,
+                            cursor.getPostingsOffset() + cursor.getPostingsLength());
+                    if (cursor.next()) {
+                        queue.add(source);
+                    }
+                }
             }
-        }
-        writer.endLastWord();
-
-        writer.writeDictionary();
-        writer.close();
+            writer.endLastWord();
 
-        for (int k = 0; k < partitionCount; k++) {
-            IndexLoader partition = partitions[k];
-            partition.delete();
+            writer.writeDictionary();
+            writer.close();
+        } finally {
+            readAhead.stop();
         }
     }
 
@@ -524,42 +724,822 @@ public class ChmIndexEngine extends AbstractIndexSearcher {
         }
     }
 
+    /**
+     * Replaces the segments searched, and drops the results cached from the old ones.
+     * <p>
+     * Searches still running keep the buffers of the old segments. The cache is
+     * invalidated only after the new segments are visible: a search which read
+     * the old ones started ranking before the invalidation, so its result is not
+     * cached (see {@link #invalidateCache()}), while a later search sees the new ones.
+     */
+    private void setSegments(IndexLoader[] newSegments) {
+        segments = newSegments;
+        invalidateCache();
+    }
+
     private void readIndexWithoutCatch() throws IOException {
         if (buildIndexStep.get() < 0) {
             buildIndexStep.set(0);
         }
 
         String path = getIndexFilePath();
-        loader = new IndexLoader();
-        loader.open(path);
+        BuildCheckpoint.deleteFinishedBuild(path);
+        migrateNamedIndex(path);
+        IndexLoader newLoader = new IndexLoader();
+        newLoader.open(path);
+        setSegments(new IndexLoader[]{newLoader});
+        openInCache();
 
         LOG.fine("Finished reading index.");
 
         buildIndexStep.set(100);
     }
 
-    enum ParseState {
-        OUTSIDE_TAGS, IN_HTML_TAG, IN_QUOTES, IN_HTML_ENTITY
+    /**
+     * Slows down the threads building an index, to leave the CPU to other work.
+     */
+    public interface BuildThrottle {
+
+        /**
+         * Called by a build thread after each piece of work, and may block it for a while.
+         *
+         * @param busyNanos CPU time the thread has just spent on the build, in nanoseconds.
+         */
+        void pause(long busyNanos) throws InterruptedException;
+    }
+
+    /**
+     * Partitions saved by an index build, and the time spent on them.
+     */
+    public static class BuildStatistics {
+
+        private final long memoryBudget;
+        private final List<Integer> partitionDocCounts = new ArrayList<Integer>();
+        private final List<Long> partitionMemorySizes = new ArrayList<Long>();
+        private final List<Long> partitionFileSizes = new ArrayList<Long>();
+        private final List<Long> flushTimes = new ArrayList<Long>();
+        private int resumedDocCount = 0;
+        private volatile int totalFileCount = 0;
+        private volatile int resumedFileCount = 0;
+        private volatile int processedFileCount = 0;
+        private long mergeTime = 0;
+        private long buildTime = 0;
+
+        BuildStatistics(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+        }
+
+        synchronized void addPartition(int docCount, long memorySize, long fileSize,
+                long flushTime) {
+            partitionDocCounts.add(docCount);
+            partitionMemorySizes.add(memorySize);
+            partitionFileSizes.add(fileSize);
+            flushTimes.add(flushTime);
+        }
+
+        synchronized void setResumedDocCount(int resumedDocCount) {
+            this.resumedDocCount = resumedDocCount;
+        }
+
+        void setFileCounts(int totalFileCount, int resumedFileCount) {
+            this.totalFileCount = totalFileCount;
+            this.resumedFileCount = resumedFileCount;
+            processedFileCount = resumedFileCount;
+        }
+
+        void setProcessedFileCount(int processedFileCount) {
+            this.processedFileCount = processedFileCount;
+        }
+
+        synchronized void setMergeTime(long mergeTime) {
+            this.mergeTime = mergeTime;
+        }
+
+        synchronized void setBuildTime(long buildTime) {
+            this.buildTime = buildTime;
+        }
+
+        public long getMemoryBudget() {
+            return memoryBudget;
+        }
+
+        public synchronized int getPartitionCount() {
+            return partitionDocCounts.size();
+        }
+
+        public synchronized List<Integer> getPartitionDocCounts() {
+            return new ArrayList<Integer>(partitionDocCounts);
+        }
+
+        /**
+         * @return estimated heap size of each partition when it was saved, in bytes.
+         */
+        public synchronized List<Long> getPartitionMemorySizes() {
+            return new ArrayList<Long>(partitionMemorySizes);
+        }
+
+        /**
+         * @return file size of each partition, in bytes.
+         */
+        public synchronized List<Long> getPartitionFileSizes() {
+            return new ArrayList<Long>(partitionFileSizes);
+        }
+
+        /**
+         * @return time spent saving each partition, in milliseconds.
+         */
+        public synchronized List<Long> getFlushTimes() {
+            return new ArrayList<Long>(flushTimes);
+        }
+
+        /**
+         * @return number of documents in partitions saved by an interrupted build,
+         * which this build resumed.
+         */
+        public synchronized int getResumedDocCount() {
+            return resumedDocCount;
+        }
+
+        /**
+         * @return number of files to index, including those of resumed partitions.
+         */
+        public int getTotalFileCount() {
+            return totalFileCount;
+        }
+
+        /**
+         * @return number of files indexed when the build started, by the interrupted build
+         * it resumed.
+         */
+        public int getResumedFileCount() {
+            return resumedFileCount;
+        }
+
+        /**
+         * @return number of files indexed so far, including those of resumed partitions.
+         */
+        public int getProcessedFileCount() {
+            return processedFileCount;
+        }
+
+        /**
+         * @return time spent merging partitions, in milliseconds.
+         */
+        public synchronized long getMergeTime() {
+            return mergeTime;
+        }
+
+        /**
+         * @return total build time in milliseconds, or 0 if the build is not finished.
+         */
+        public synchronized long getBuildTime() {
+            return buildTime;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("memory budget %d KB, %d resumed documents, %d partitions, "
+                            + "documents %s, memory sizes %s, file sizes %s, flush times %s ms, "
+                            + "merge time %d ms, build time %d ms",
+                    memoryBudget / 1024, resumedDocCount, partitionDocCounts.size(),
+                    partitionDocCounts,
+                    partitionMemorySizes, partitionFileSizes, flushTimes, mergeTime, buildTime);
+        }
+    }
+
+    /**
+     * A document passing through the stages of {@link BuildPipeline}.
+     * Each stage fills in its part, and drops what is no longer needed.
+     */
+    static class PipelineDocument {
+
+        /**
+         * position of the document in storage order.
+         */
+        final int sequence;
+        final ChmUnitInfo ui;
+        ByteBuffer content;
+        StringBuilder text;
+        /**
+         * text of the TOC title and the HTML title, to be indexed.
+         */
+        String titleText;
+        /**
+         * title to be shown in search results.
+         */
+        String title;
+        InvertedDocument inverted;
+
+        PipelineDocument(int sequence, ChmUnitInfo ui) {
+            this.sequence = sequence;
+            this.ui = ui;
+        }
+    }
+
+    /**
+     * Time spent by the threads of a build stage.
+     * The stage waiting least for input and most for output is the bottleneck downstream of it.
+     */
+    static class StageCounters {
+
+        final String name;
+        final AtomicLong documentCount = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong inputWaitNanos = new AtomicLong();
+        final AtomicLong outputWaitNanos = new AtomicLong();
+
+        StageCounters(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d documents, busy %d ms, waiting for input %d ms, "
+                            + "waiting for output %d ms", name, documentCount.get(),
+                    busyNanos.get() / 1000000, inputWaitNanos.get() / 1000000,
+                    outputWaitNanos.get() / 1000000);
+        }
+    }
+
+    /**
+     * Builds index partitions with a pipeline of stages connected by bounded queues:
+     * <ol>
+     * <li>decode: one thread fetching (and decompressing) documents in storage order</li>
+     * <li>extract: threads converting documents to text, without tags and entities</li>
+     * <li>invert: threads tokenizing text and collecting word locations</li>
+     * <li>write: the calling thread, adding documents to the partition in storage order,
+     * and saving full partitions</li>
+     * </ol>
+     * A stage blocks when its output queue is full, so the slowest stage sets the pace.
+     * Document IDs follow storage order whatever the thread timing.
+     * <p>
+     * A partition is saved when it reaches the memory budget, and also when it has not been
+     * saved for a while, so that the documents indexed so far can be searched soon after
+     * the build starts. That delay doubles after each partition saved for it, to keep
+     * the number of partitions down in long builds.
+     */
+    class BuildPipeline {
+
+        private final PipelineDocument endOfDocuments = new PipelineDocument(-1, null);
+        private final List<ChmUnitInfo> files;
+        private final int extractThreadCount;
+        private final int invertThreadCount;
+        private final BlockingQueue<PipelineDocument> decodedQueue =
+                new ArrayBlockingQueue<PipelineDocument>(STAGE_QUEUE_SIZE);
+        private final BlockingQueue<PipelineDocument> extractedQueue =
+                new ArrayBlockingQueue<PipelineDocument>(STAGE_QUEUE_SIZE);
+        private final BlockingQueue<PipelineDocument> invertedQueue =
+                new ArrayBlockingQueue<PipelineDocument>(STAGE_QUEUE_SIZE);
+        /**
+         * limits documents between decoding and writing, including those waiting to be reordered.
+         */
+        private final Semaphore inFlight = new Semaphore(MAX_DOCUMENTS_IN_FLIGHT);
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        private final ExecutorService executor;
+        private final Tokenizer tokenizer;
+        private final BuildStatistics statistics;
+        private final BuildCheckpoint checkpoint;
+        private final SegmentMerger merger;
+        final StageCounters decodeCounters = new StageCounters("decode");
+        final StageCounters extractCounters = new StageCounters("extract");
+        final StageCounters invertCounters = new StageCounters("invert");
+        final StageCounters writeCounters = new StageCounters("write");
+        final StageCounters[] stages = {
+                decodeCounters, extractCounters, invertCounters, writeCounters};
+
+        BuildPipeline(List<ChmUnitInfo> files, Tokenizer tokenizer, BuildStatistics statistics,
+                BuildCheckpoint checkpoint, SegmentMerger merger) {
+            this.files = files;
+            this.tokenizer = tokenizer;
+            this.statistics = statistics;
+            this.checkpoint = checkpoint;
+            this.merger = merger;
+            int processorCount = Runtime.getRuntime().availableProcessors();
+            extractThreadCount = Math.max(processorCount / 4, 1);
+            invertThreadCount = Math.max(processorCount / 2, 1);
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ChmIndexEngine builder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * Indexes the files after the ones in the partitions of the checkpoint.
+         * Partitions saved before an interruption or a failure are kept for the next build.
+         *
+         * @return the number of partitions saved, or -1 if interrupted.
+         */
+        int run() throws IOException {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decode();
+                }
+            });
+            AtomicInteger runningExtractors = new AtomicInteger(extractThreadCount);
+            for (int i = 0; i < extractThreadCount; i++) {
+                final HtmlTextExtractor extractor = new HtmlTextExtractor(chmFile.getEncoding());
+                executor.execute(new PipelineStage(extractCounters, decodedQueue, extractedQueue,
+                        runningExtractors, invertThreadCount) {
+                    @Override
+                    void process(PipelineDocument doc) {
+                        extract(doc, extractor);
+                    }
+                });
+            }
+            AtomicInteger runningInverters = new AtomicInteger(invertThreadCount);
+            for (int i = 0; i < invertThreadCount; i++) {
+                final DocumentInverter inverter = new DocumentInverter(tokenizer);
+                executor.execute(new PipelineStage(invertCounters, extractedQueue, invertedQueue,
+                        runningInverters, 1) {
+                    @Override
+                    void process(PipelineDocument doc) {
+                        if (doc.text != null) {
+                            doc.inverted = inverter.invert(doc.text, doc.titleText);
+                            doc.text = null;
+                        }
+                    }
+                });
+            }
+            return write();
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+
+        private void throttle(long busyNanos) throws InterruptedException {
+            BuildThrottle throttle = buildThrottle;
+            if (throttle != null) {
+                throttle.pause(busyNanos);
+            }
+        }
+
+        private void decode() {
+            try {
+                for (int sequence = checkpoint.getNextSequence(); sequence < files.size();
+                        sequence++) {
+                    if (buildIndexStep.get() < 0) { // interrupted
+                        return;
+                    }
+                    long startTime = System.nanoTime();
+                    inFlight.acquire();
+                    long decodeTime = System.nanoTime();
+
+                    PipelineDocument doc = new PipelineDocument(sequence, files.get(sequence));
+                    doc.content = chmFile.retrieveObject(doc.ui);
+                    long putTime = System.nanoTime();
+
+                    decodedQueue.put(doc);
+                    long endTime = System.nanoTime();
+                    decodeCounters.documentCount.incrementAndGet();
+                    decodeCounters.busyNanos.addAndGet(putTime - decodeTime);
+                    decodeCounters.outputWaitNanos.addAndGet(
+                            endTime - putTime + decodeTime - startTime);
+                    throttle(putTime - decodeTime);
+                }
+                for (int i = 0; i < extractThreadCount; i++) {
+                    decodedQueue.put(endOfDocuments);
+                }
+            } catch (InterruptedException ignored) {
+                // stopped
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        private void extract(PipelineDocument doc, HtmlTextExtractor extractor) {
+            ByteBuffer content = doc.content;
+            doc.content = null;
+            if (content == null || !content.hasRemaining()) {
+                return;
+            }
+            doc.text = extractor.extract(content);
+
+            String path = doc.ui.getPath();
+            String tocTitle = chmFile.getTitleOfObject(path);
+            if (tocTitle.equals(path)) {
+                tocTitle = null;
+            }
+            String htmlTitle = extractor.getTitle();
+            if (tocTitle == null) {
+                doc.titleText = htmlTitle;
+            } else if (htmlTitle == null || htmlTitle.equals(tocTitle)) {
+                doc.titleText = tocTitle;
+            } else {
+                doc.titleText = tocTitle + " " + htmlTitle;
+            }
+            doc.title = tocTitle != null ? tocTitle : (htmlTitle != null ? htmlTitle : path);
+        }
+
+        /**
+         * Adds inverted documents to partitions in storage order.
+         */
+        private int write() throws IOException {
+            HashMap<Integer, PipelineDocument> reorderBuffer = new HashMap<Integer, PipelineDocument>();
+            int nextSequence = checkpoint.getNextSequence();
+            int totalFileCount = files.size();
+
+            InvertedPartition partition = new InvertedPartition();
+            long memoryBudget = statistics.getMemoryBudget();
+            long flushDelay = SEGMENT_FLUSH_MILLIS;
+            long lastFlushTime = System.currentTimeMillis();
+
+            int docID = checkpoint.getNextDocId() - 1;
+            int partitionID = checkpoint.getPartitionCount() - 1;
+
+            while (true) {
+                if (buildIndexStep.get() < 0) { // interrupted
+                    return -1;
+                }
+                Throwable error = failure.get();
+                if (error != null) {
+                    if (error instanceof IOException) {
+                        throw (IOException) error;
+                    }
+                    throw new IOException("Failed to build index", error);
+                }
+
+                long startTime = System.nanoTime();
+                PipelineDocument doc;
+                try {
+                    doc = invertedQueue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+                long writeTime = System.nanoTime();
+                writeCounters.inputWaitNanos.addAndGet(writeTime - startTime);
+                if (doc == endOfDocuments) {
+                    break;
+                } else if (doc == null) {
+                    continue;
+                }
+
+                reorderBuffer.put(doc.sequence, doc);
+                while ((doc = reorderBuffer.remove(nextSequence)) != null) {
+                    nextSequence++;
+                    inFlight.release();
+                    writeCounters.documentCount.incrementAndGet();
+                    if (doc.inverted == null
+                            || (doc.inverted.wordCount == 0 && doc.inverted.termCount == 0)) {
+                        continue;
+                    }
+
+                    docID++;
+                    partition.addDocument(docID, doc.ui.getPath(), doc.title, doc.inverted);
+
+                    boolean full = partition.getMemoryUsage() >= memoryBudget;
+                    if (full || System.currentTimeMillis() - lastFlushTime >= flushDelay) {
+                        if (!full) {
+                            flushDelay *= 2;
+                        }
+                        partitionID++;
+                        savePartition(partitionID, partition, nextSequence, docID + 1);
+                        partition = new InvertedPartition();
+                        lastFlushTime = System.currentTimeMillis();
+                    }
+                }
+
+                int step = Math.min(nextSequence * 100 / Math.max(totalFileCount, 1), 99);
+                Integer currentStep = buildIndexStep.get();
+                if (currentStep >= 0 && step > currentStep
+                        && buildIndexStep.compareAndSet(currentStep, step)) {
+                    LOG.info("Building index step " + step);
+                    LOG.info("total word count " + partition.getWordCount());
+                    LOG.info("filesProcessed " + nextSequence + "/" + totalFileCount
+                            + " docID " + docID);
+                }
+                statistics.setProcessedFileCount(nextSequence);
+                long busyTime = System.nanoTime() - writeTime;
+                writeCounters.busyNanos.addAndGet(busyTime);
+                try {
+                    throttle(busyTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+
+            // the last partition may be empty, if the build resumed after all documents
+            if (partition.getDocCount() > 0 || partitionID < 0) {
+                partitionID++;
+                savePartition(partitionID, partition, nextSequence, docID + 1);
+            }
+            return partitionID + 1;
+        }
+
+        private void savePartition(int partitionID, InvertedPartition partition,
+                int nextSequence, int nextDocId) throws IOException {
+            saveIndexPartition(checkpoint.getPartitionPath(partitionID), partitionID, partition,
+                    tokenizer.isCjkBigrams() ? FLAG_CJK_BIGRAMS : 0, statistics);
+            checkpoint.addPartition(nextSequence, nextDocId, partition.getDocCount());
+            merger.add(checkpoint.getPartitionPath(partitionID));
+        }
+
+        /**
+         * A thread of a stage, moving documents from its input queue to its output queue.
+         * The last thread of the stage to finish passes the end of documents on,
+         * once for each thread of the next stage.
+         */
+        abstract class PipelineStage implements Runnable {
+
+            private final StageCounters counters;
+            private final BlockingQueue<PipelineDocument> input;
+            private final BlockingQueue<PipelineDocument> output;
+            private final AtomicInteger runningThreads;
+            private final int nextStageThreadCount;
+
+            PipelineStage(StageCounters counters, BlockingQueue<PipelineDocument> input,
+                    BlockingQueue<PipelineDocument> output, AtomicInteger runningThreads,
+                    int nextStageThreadCount) {
+                this.counters = counters;
+                this.input = input;
+                this.output = output;
+                this.runningThreads = runningThreads;
+                this.nextStageThreadCount = nextStageThreadCount;
+            }
+
+            abstract void process(PipelineDocument doc);
+
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        long startTime = System.nanoTime();
+                        PipelineDocument doc = input.take();
+                        long processTime = System.nanoTime();
+                        counters.inputWaitNanos.addAndGet(processTime - startTime);
+                        if (doc == endOfDocuments) {
+                            break;
+                        }
+
+                        process(doc);
+                        long putTime = System.nanoTime();
+                        counters.busyNanos.addAndGet(putTime - processTime);
+                        counters.documentCount.incrementAndGet();
+
+                        output.put(doc);
+                        counters.outputWaitNanos.addAndGet(System.nanoTime() - putTime);
+                        throttle(putTime - processTime);
+                    }
+                    if (runningThreads.decrementAndGet() == 0) {
+                        for (int i = 0; i < nextStageThreadCount; i++) {
+                            output.put(endOfDocuments);
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                    // stopped
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
     }
 
-    class LocationsInDocument {
+    /**
+     * Makes the partitions of a build searchable as soon as they are saved, and merges them
+     * in the background, like the levels of a log-structured merge tree.
+     * <p>
+     * Segments (partitions, or files merged from them) are grouped by level. When
+     * {@link #MAX_MERGE_WIDTH} segments of a level are not being merged yet, a background
+     * thread merges them into a segment of the next level, which then replaces them
+     * in searches. Merges run one at a time, in the order they are scheduled, so that
+     * segments of higher levels hold earlier documents than those of lower levels.
+     * The query result cache is dropped whenever the segments change.
+     * <p>
+     * Partitions are kept until the index is complete, so that an interrupted build can
+     * resume from them. Merged files are deleted once merged again, or as orphans by the
+     * next build.
+     */
+    class SegmentMerger {
+
+        private final BuildCheckpoint checkpoint;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ChmIndexEngine merger");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        /**
+         * segments of each level, from the earliest documents.
+         */
+        private final List<List<IndexLoader>> levels = new ArrayList<List<IndexLoader>>();
+        /**
+         * number of segments of each level being merged, the first ones of the level.
+         */
+        private final List<Integer> mergingCounts = new ArrayList<Integer>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        private int mergedFileCount = 0;
+        /**
+         * files of segments which are not searched anymore, see {@link #deleteRetiredFiles()}.
+         */
+        private final List<String> retiredPaths = new ArrayList<String>();
+
+        /**
+         * Replaces the segments searched with the (still empty) segments of the build.
+         */
+        SegmentMerger(BuildCheckpoint checkpoint) {
+            this.checkpoint = checkpoint;
+            publish();
+        }
+
+        /**
+         * Makes a saved partition searchable.
+         */
+        synchronized void add(String path) throws IOException {
+            IndexLoader segment = new IndexLoader();
+            segment.openForMerge(path);
+            addSegment(0, segment);
+        }
+
+        private synchronized void addSegment(int level, IndexLoader segment) {
+            while (levels.size() <= level) {
+                levels.add(new ArrayList<IndexLoader>());
+                mergingCounts.add(0);
+            }
+            List<IndexLoader> levelSegments = levels.get(level);
+            levelSegments.add(segment);
+            int mergingCount = mergingCounts.get(level);
+            if (levelSegments.size() - mergingCount >= MAX_MERGE_WIDTH) {
+                List<IndexLoader> group = new ArrayList<IndexLoader>(
+                        levelSegments.subList(mergingCount, mergingCount + MAX_MERGE_WIDTH));
+                mergingCounts.set(level, mergingCount + MAX_MERGE_WIDTH);
+                scheduleMerge(level, group, checkpoint.getMergePath() + "." + mergedFileCount++);
+            }
+            publish();
+        }
+
+        private void scheduleMerge(final int level, final List<IndexLoader> group,
+                final String path) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            merge(level, group, path);
+                        } catch (Throwable e) {
+                            LOG.info("Failed to merge segments: " + e);
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ignored) {
+                // shut down
+            }
+        }
+
+        private void merge(int level, List<IndexLoader> group, String path) throws IOException {
+            if (buildIndexStep.get() < 0) { // interrupted
+                return;
+            }
+            long startTime = System.currentTimeMillis();
+            List<String> paths = new ArrayList<String>(group.size());
+            for (IndexLoader segment : group) {
+                paths.add(segment.filename);
+            }
+            mergeIndexFiles(paths, path);
+            IndexLoader merged = new IndexLoader();
+            merged.openForMerge(path);
+            LOG.info(String.format("Merged %d segments of level %d in %d ms", group.size(),
+                    level, System.currentTimeMillis() - startTime));
+
+            synchronized (this) {
+                levels.get(level).subList(0, group.size()).clear();
+                mergingCounts.set(level, mergingCounts.get(level) - group.size());
+                // partitions are kept for the checkpoint until the index is complete
+                if (level > 0) {
+                    retiredPaths.addAll(paths);
+                }
+                addSegment(level + 1, merged);
+            }
+        }
+
+        private synchronized void publish() {
+            List<IndexLoader> all = new ArrayList<IndexLoader>();
+            for (int level = levels.size() - 1; level >= 0; level--) {
+                all.addAll(levels.get(level));
+            }
+            setSegments(all.toArray(new IndexLoader[all.size()]));
+            deleteRetiredFiles();
+        }
+
+        /**
+         * Deletes the files of the segments which are not published anymore.
+         * <p>
+         * Searches still running keep the buffers of a deleted file on POSIX systems.
+         * Elsewhere, a file cannot be deleted while it is mapped, that is until its buffers
+         * are garbage collected, so it is tried again after each change of the segments.
+         * Files still left at the end of the build are deleted the next time
+         * the index is read, see {@link BuildCheckpoint#deleteFinishedBuild(String)}.
+         */
+        private synchronized void deleteRetiredFiles() {
+            Iterator<String> it = retiredPaths.iterator();
+            while (it.hasNext()) {
+                File file = new File(it.next());
+                if (!file.exists() || file.delete()) {
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * Waits for the merges in progress, merges the remaining segments into the index,
+         * and loads it in their place.
+         */
+        void finish() throws IOException {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while merging segments");
+            }
+            Throwable error = failure.get();
+            if (error != null) {
+                if (error instanceof IOException) {
+                    throw (IOException) error;
+                }
+                throw new IOException("Failed to merge segments", error);
+            }
 
-        final int docID;
-        final String url;
-        final Set<Integer> locations;
-        int totalFrequency;
+            List<String> paths = new ArrayList<String>();
+            synchronized (this) {
+                for (IndexLoader segment : segments) {
+                    paths.add(segment.filename);
+                }
+            }
+            List<String> intermediatePaths = new ArrayList<String>();
+            String mergedPath = mergeSegments(checkpoint, paths, intermediatePaths);
+
+            // the old index is not searched since the build started, see the constructor
+            File index = new File(getIndexFilePath());
+            if (index.exists() && !index.delete()) {
+                throw new IOException("Failed to delete " + index);
+            }
+            if (!new File(mergedPath).renameTo(index)) {
+                throw new IOException("Failed to rename " + mergedPath);
+            }
+            readIndexWithoutCatch();
+            checkpoint.delete();
+
+            synchronized (this) {
+                retiredPaths.addAll(intermediatePaths);
+                retiredPaths.addAll(paths);
+                for (int partitionID = 0; partitionID < checkpoint.getPartitionCount();
+                        partitionID++) {
+                    retiredPaths.add(checkpoint.getPartitionPath(partitionID));
+                }
+                deleteRetiredFiles();
+            }
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+    }
 
-        LocationsInDocument(int docID, String url) {
-            this.docID = docID;
-            this.url = url;
-            locations = new LinkedHashSet<Integer>();
-            totalFrequency = 0;
+    /**
+     * Words starting with a prefix, with the location of their postings.
+     */
+    static class PrefixExpansion {
+
+        final String[] words;
+        final int[] offsets;
+        final int[] lengths;
+        /**
+         * sum of the document counts of the words.
+         */
+        final int docCount;
+
+        PrefixExpansion(String[] words, int[] offsets, int[] lengths, int docCount) {
+            this.words = words;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.docCount = docCount;
         }
     }
 
-    class DocumentsForWord {
+    static class ExpandedWord {
 
-        final List<LocationsInDocument> documents = new ArrayList<LocationsInDocument>();
+        final String word;
+        final int docCount;
+        final int offset;
+        final int length;
+
+        ExpandedWord(TermDictionary.Cursor cursor) {
+            word = cursor.getWord();
+            docCount = cursor.getDocCount();
+            offset = cursor.getPostingsOffset();
+            length = cursor.getPostingsLength();
+        }
     }
 
     class WordPostingInfo {
@@ -574,101 +1554,143 @@ public class ChmIndexEngine extends AbstractIndexSearcher {
         }
     }
 
+    /**
+     * A dictionary cursor of a file being merged. Cursors are ordered by word,
+     * then by file, which is the order of their document IDs.
+     */
+    static class MergeCursor implements Comparable<MergeCursor> {
+
+        final int index;
+        final IndexLoader file;
+        final TermDictionary.Cursor cursor;
+        /**
+         * region of the file in {@link ReadAhead}.
+         */
+        final int region;
+
+        MergeCursor(int index, IndexLoader file, TermDictionary.Cursor cursor, int region) {
+            this.index = index;
+            this.file = file;
+            this.cursor = cursor;
+            this.region = region;
+        }
+
+        @Override
+        public int compareTo(MergeCursor other) {
+            int result = cursor.getWord().compareTo(other.cursor.getWord());
+            if (result != 0) {
+                return result;
+            }
+            return index < other.index ? -1 : (index == other.index ? 0 : 1);
+        }
+    }
+
     class IndexWriter {
 
-        final HashMap<String, WordPostingInfo> wordToPostings;
+        final TermDictionary.Writer dictionary = new TermDictionary.Writer();
+        final BlockPostingsWriter postingsWriter = new BlockPostingsWriter();
+        final byte[] transferBuffer = new byte[64 * 1024];
         DataOutputStream out;
         int postingOffset;
         String lastWord;
+        WordPostingInfo lastPostingInfo;
 
         IndexWriter() {
-            wordToPostings = new LinkedHashMap<String, WordPostingInfo>();
-
             lastWord = "";
+            lastPostingInfo = null;
         }
 
-        void open(String filename) throws IOException {
-            out = new DataOutputStream(new FileOutputStream(filename));
+        void open(String filename, int flags) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
 
-            out.writeInt(1); // version
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(flags);
         }
 
-        void writeDocId2Url(HashMap<Integer, String> docIdToUrl) throws IOException {
-            Varint.writeUnsignedVarInt(docIdToUrl.size(), out);
-            for (Map.Entry<Integer, String> entry : docIdToUrl.entrySet()) {
-                int docId = entry.getKey();
-                String url = entry.getValue();
-                Varint.writeUnsignedVarInt(docId, out);
-                out.writeUTF(url);
-            }
+        void writeDocuments(DocumentTable.Writer documents) throws IOException {
+            documents.writeTo(out);
 
             postingOffset = out.size();
         }
 
-        private void addWord(String word, int docCount) {
+        private void addWord(String word, int docCount) throws IOException {
             if (!word.equals(lastWord)) {
                 endLastWord();
-                if (wordToPostings.containsKey(lastWord)) {
-                    WordPostingInfo lastPostingInfo = wordToPostings.get(lastWord);
-                    lastPostingInfo.length = out.size() - lastPostingInfo.offset;
-                }
-                WordPostingInfo postingInfo = new WordPostingInfo();
-                postingInfo.offset = out.size();
-                wordToPostings.put(word, postingInfo);
-                postingInfo.docCount = docCount;
+                lastPostingInfo = new WordPostingInfo();
+                lastPostingInfo.offset = out.size();
+                lastPostingInfo.docCount = docCount;
 
                 lastWord = word;
             } else {
-                WordPostingInfo postingInfo = wordToPostings.get(word);
-                postingInfo.docCount += docCount;
+                lastPostingInfo.docCount += docCount;
             }
         }
 
-        private void endLastWord() {
-            if (lastWord.length() > 0 && wordToPostings.containsKey(lastWord)) {
-                WordPostingInfo lastPostingInfo = wordToPostings.get(lastWord);
+        private void endLastWord() throws IOException {
+            if (lastPostingInfo != null) {
+                // postings of a word may come from several partitions
+                postingsWriter.writeTo(out);
                 lastPostingInfo.length = out.size() - lastPostingInfo.offset;
-                // LOG.fine(String.format("Word %s: %d, %d, docCount=%d",
-                //         lastWord, lastPostingInfo.offset, lastPostingInfo.length,
-                //         lastPostingInfo.docCount));
+                dictionary.add(lastWord, lastPostingInfo.offset, lastPostingInfo.length,
+                        lastPostingInfo.docCount);
+                lastPostingInfo = null;
             }
         }
 
-        void writeWord(String word, DocumentsForWord documentsForWord) throws IOException {
-            addWord(word, documentsForWord.documents.size());
+        void writeWord(String word, InvertedPartition partition, int termId)
+                throws IOException {
+            addWord(word, partition.getDocCount(termId));
+            partition.writePostings(termId, postingsWriter);
+        }
+
+        /**
+         * Adds postings of a word found in several files being merged.
+         */
+        void appendWord(String word, int docCount, ByteBuffer postings) throws IOException {
+            addWord(word, docCount);
+            postingsWriter.copyBlocks(postings);
+        }
+
+        /**
+         * Writes all the postings of a word, as they are.
+         */
+        void copyWord(String word, int docCount, ByteBuffer postings) throws IOException {
+            endLastWord();
+            int offset = out.size();
+            int length = postings.remaining();
+            copy(postings);
+            dictionary.add(word, offset, length, docCount);
+            lastWord = word;
+        }
 
-            for (LocationsInDocument lid : documentsForWord.documents) {
-                Varint.writeUnsignedVarInt(lid.docID, out);
-                Varint.writeUnsignedVarInt(lid.totalFrequency, out);
-                Varint.writeUnsignedVarInt(lid.locations.size(), out);
-                int lastLoc = 0;
-                for (Integer loc : lid.locations) {
-                    int currentLoc = loc;
-                    int relativeLoc = currentLoc - lastLoc;
-                    Varint.writeUnsignedVarInt(relativeLoc, out);
-                    lastLoc = currentLoc;
+        /**
+         * Writes the documents of files being merged, which have consecutive document IDs.
+         */
+        void mergeDocuments(IndexLoader[] files) throws IOException {
+            DocumentTable.Writer documents = new DocumentTable.Writer();
+            for (IndexLoader file : files) {
+                DocumentTable.Cursor cursor = file.documents.cursor();
+                while (cursor.next()) {
+                    documents.add(cursor.getDocId(), cursor.getUrl(), cursor.getTitle());
                 }
             }
+            writeDocuments(documents);
         }
 
-        void writeWord(String word, int docCount, byte[] buf) throws IOException {
-            addWord(word, docCount);
-            out.write(buf);
+        private void copy(ByteBuffer from) throws IOException {
+            ByteBuffer in = from.duplicate();
+            while (in.hasRemaining()) {
+                int chunk = Math.min(in.remaining(), transferBuffer.length);
+                in.get(transferBuffer, 0, chunk);
+                out.write(transferBuffer, 0, chunk);
+            }
         }
 
         void writeDictionary() throws IOException {
             int postingLength = out.size() - postingOffset;
 
             int dictionaryOffset = out.size();
-            Varint.writeUnsignedVarInt(wordToPostings.size(), out);
-            for (Entry<String, WordPostingInfo> it : wordToPostings.entrySet()) {
-                String word = it.getKey();
-                WordPostingInfo postingInfo = it.getValue();
-                out.writeUTF(word);
-                Varint.writeUnsignedVarInt(postingInfo.offset, out);
-                Varint.writeUnsignedVarInt(postingInfo.length, out);
-                Varint.writeUnsignedVarInt(postingInfo.docCount, out);
-            }
+            dictionary.writeTo(out);
             int dictionaryLength = out.size() - dictionaryOffset;
 
             out.writeInt(postingOffset);
@@ -682,132 +1704,232 @@ public class ChmIndexEngine extends AbstractIndexSearcher {
         }
     }
 
-    @SuppressWarnings("unused")
+    /**
+     * Reads an index file mapped into memory.
+     * <p>
+     * Postings are decoded from slices of the mapped buffer, with no system call
+     * and no shared file pointer, so that any number of searches can read them at once.
+     */
     class IndexLoader {
 
         String filename;
-        RandomAccessFile in;
+        ByteBuffer buffer;
+        int version;
+        /**
+         * 0 before version 7.
+         */
+        int flags;
+        /**
+         * splits queries like the text of this file, see {@link #getQueryTokenizer()}.
+         */
+        Tokenizer tokenizer;
         int postingOffset;
         int postingLength;
         int dictionaryOffset;
         int dictionaryLength;
-        LinkedList<String> words;
-        HashMap<String, WordPostingInfo> wordToPostings;
-        HashMap<Integer, String> docIdToUrl;
+        TermDictionary dictionary;
+        /**
+         * read into the heap before version 6. Titles are empty before version 4.
+         */
+        DocumentTable documents;
+        final Map<String, PrefixExpansion> prefixCache =
+                new LinkedHashMap<String, PrefixExpansion>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Entry<String, PrefixExpansion> eldest) {
+                        return size() > PREFIX_CACHE_SIZE;
+                    }
+                };
+
+        /**
+         * Opens a file to be merged.
+         */
+        void openForMerge(String filename) throws IOException {
+            open(filename);
+            if (version != INDEX_VERSION) {
+                throw new IOException("Cannot merge index version " + version);
+            }
+        }
 
         void open(String filename) throws IOException {
             this.filename = filename;
-            in = new RandomAccessFile(filename, "r");
-
-            docIdToUrl = new HashMap<Integer, String>();
-            // in.seek(0);
-            int version = in.readInt();
-            assert version == 1;
-            int docCount = Varint.readUnsignedVarInt(in);
-            for (int i = 0; i < docCount; i++) {
-                int docID = Varint.readUnsignedVarInt(in);
-                String url = in.readUTF();
-                docIdToUrl.put(docID, url);
+            RandomAccessFile file = new RandomAccessFile(filename, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                // the mapping stays valid after the channel is closed
+                buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                file.close();
             }
+            load();
+        }
 
-            in.seek(in.length() - 16);
-            postingOffset = in.readInt();
-            postingLength = in.readInt();
-            dictionaryOffset = in.readInt();
-            dictionaryLength = in.readInt();
-
-            words = new LinkedList<String>();
-            wordToPostings = new LinkedHashMap<String, WordPostingInfo>();
-            in.seek(dictionaryOffset);
-            int wordCount = Varint.readUnsignedVarInt(in);
-            for (int i = 0; i < wordCount; i++) {
-                String word = in.readUTF();
-                WordPostingInfo postingInfo = new WordPostingInfo();
-                postingInfo.offset = Varint.readUnsignedVarInt(in);
-                postingInfo.length = Varint.readUnsignedVarInt(in);
-                postingInfo.docCount = Varint.readUnsignedVarInt(in);
-                wordToPostings.put(word, postingInfo);
-                words.add(word);
+        /**
+         * Reads a file into the heap instead of mapping it, so that it is not held open.
+         */
+        void read(String filename) throws IOException {
+            this.filename = filename;
+            RandomAccessFile file = new RandomAccessFile(filename, "r");
+            try {
+                byte[] bytes = new byte[(int) file.length()];
+                file.readFully(bytes);
+                buffer = ByteBuffer.wrap(bytes);
+            } finally {
+                file.close();
             }
+            load();
         }
 
-        boolean hasNext() {
-            return words.size() > 0;
+        private void load() throws IOException {
+            version = buffer.getInt(0);
+            if (version < MIN_INDEX_VERSION || version > INDEX_VERSION) {
+                throw new IOException("Unsupported index version " + version);
+            }
+            flags = version >= 7 ? buffer.getInt(4) : 0;
+            tokenizer = ChmIndexEngine.this.tokenizer.withCjkBigrams(
+                    (flags & FLAG_CJK_BIGRAMS) != 0);
+            int headerSize = version >= 7 ? 8 : 4;
+
+            int trailerOffset = buffer.capacity() - 16;
+            postingOffset = buffer.getInt(trailerOffset);
+            postingLength = buffer.getInt(trailerOffset + 4);
+            dictionaryOffset = buffer.getInt(trailerOffset + 8);
+            dictionaryLength = buffer.getInt(trailerOffset + 12);
+
+            dictionary = new TermDictionary(getSlice(dictionaryOffset, dictionaryLength));
+            if (version >= 6) {
+                documents = new DocumentTable(getSlice(headerSize, postingOffset - headerSize));
+            } else {
+                documents = readLegacyDocuments();
+            }
         }
 
-        void advance() {
-            words.pop();
+        private DataInputStream getInputStream(int offset) {
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset);
+            return new DataInputStream(new ByteBufferInputStream(in));
         }
 
-        String getWord() {
-            return words.getFirst();
+        int getDocCount(String word) {
+            TermDictionary.Cursor cursor = dictionary.find(word);
+            return cursor == null ? 0 : cursor.getDocCount();
         }
 
-        int getDocCount(String word) {
-            if (wordToPostings.containsKey(word)) {
-                WordPostingInfo postingInfo = wordToPostings.get(word);
-                return postingInfo.docCount;
+        /**
+         * @return the postings of a word, as a slice of the mapped buffer owned by the caller,
+         * or null if not found.
+         */
+        ByteBuffer getPostingsBuffer(String word) {
+            TermDictionary.Cursor cursor = dictionary.find(word);
+            if (cursor == null) {
+                return null;
             }
-            return 0;
+            return getPostingsBuffer(cursor);
         }
 
-        byte[] getPostings(String word) throws IOException {
-            WordPostingInfo postingInfo = wordToPostings.get(word);
-            in.seek(postingInfo.offset);
-            byte[] buf = new byte[postingInfo.length];
-            in.read(buf);
-            return buf;
+        ByteBuffer getPostingsBuffer(TermDictionary.Cursor cursor) {
+            return getSlice(cursor.getPostingsOffset(), cursor.getPostingsLength());
         }
 
-        void delete() throws IOException {
-            in.close();
-            //noinspection ResultOfMethodCallIgnored
-            new File(filename).delete();
+        ByteBuffer getPostingsBuffer(int offset, int length) {
+            return getSlice(offset, length);
         }
 
-        DocumentsForWord loadDocumentsForWord(String word) {
-            try {
-                return loadDocumentsForWordWithoutCatch(word);
-            } catch (IOException ignored) {
-                return null;
+        /**
+         * @return whether the term is a single CJK character of an index of bigrams,
+         * which is found as the first character of a bigram, or alone at the end of a run.
+         */
+        boolean isCjkPrefix(String term) {
+            if ((flags & FLAG_CJK_BIGRAMS) == 0) {
+                return false;
             }
+            int start = term.length() > 0 && term.charAt(0) == DocumentInverter.TITLE_FIELD ? 1 : 0;
+            return term.length() == start + 1 && Tokenizer.isCjk(term.charAt(start));
         }
 
-        DocumentsForWord loadDocumentsForWordWithoutCatch(String word) throws IOException {
-            if (!wordToPostings.containsKey(word)) {
-                return null;
+        /**
+         * Expands a prefix to the words starting with it, at most
+         * {@link #MAX_PREFIX_EXPANSIONS} of them, except for a single CJK character of
+         * an index of bigrams, which is expanded to all the bigrams starting with it.
+         */
+        PrefixExpansion expandPrefix(String prefix) {
+            synchronized (prefixCache) {
+                PrefixExpansion expansion = prefixCache.get(prefix);
+                if (expansion != null) {
+                    return expansion;
+                }
             }
 
-            DocumentsForWord documentsForWord = new DocumentsForWord();
-
-            WordPostingInfo postingInfo = wordToPostings.get(word);
-            int offset = postingInfo.offset;
-            int length = postingInfo.length;
-            in.seek(offset);
-            while (in.getFilePointer() < offset + length) {
-                int docID = Varint.readUnsignedVarInt(in);
-                String url = docIdToUrl.get(docID);
-
-                LocationsInDocument locationsInDocument = new LocationsInDocument(docID, url);
-                documentsForWord.documents.add(locationsInDocument);
+            int maxExpansions = isCjkPrefix(prefix) ? Integer.MAX_VALUE : MAX_PREFIX_EXPANSIONS;
+            // min-heap of the words in the most documents so far
+            PriorityQueue<ExpandedWord> best = new PriorityQueue<ExpandedWord>(
+                    Math.min(maxExpansions, MAX_PREFIX_EXPANSIONS) + 1,
+                    new Comparator<ExpandedWord>() {
+                        @Override
+                        public int compare(ExpandedWord w1, ExpandedWord w2) {
+                            return w1.docCount < w2.docCount ? -1
+                                    : (w1.docCount == w2.docCount ? 0 : 1);
+                        }
+                    });
+            TermDictionary.Cursor cursor = dictionary.seek(prefix);
+            while (cursor.hasWord() && cursor.startsWith(prefix)) {
+                if (best.size() < maxExpansions
+                        || cursor.getDocCount() > best.peek().docCount) {
+                    best.add(new ExpandedWord(cursor));
+                    if (best.size() > maxExpansions) {
+                        best.poll();
+                    }
+                }
+                cursor.next();
+            }
 
-                locationsInDocument.totalFrequency = Varint.readUnsignedVarInt(in);
+            int count = best.size();
+            String[] expandedWords = new String[count];
+            int[] offsets = new int[count];
+            int[] lengths = new int[count];
+            int docCount = 0;
+            for (int i = 0; i < count; i++) {
+                ExpandedWord word = best.poll();
+                expandedWords[i] = word.word;
+                offsets[i] = word.offset;
+                lengths[i] = word.length;
+                docCount += word.docCount;
+            }
+            PrefixExpansion expansion = new PrefixExpansion(expandedWords, offsets, lengths,
+                    docCount);
+            synchronized (prefixCache) {
+                prefixCache.put(prefix, expansion);
+            }
+            return expansion;
+        }
 
-                int locCount = Varint.readUnsignedVarInt(in);
-                int lastLoc = 0;
-                for (int k = 0; k < locCount; k++) {
-                    int relativeLoc = Varint.readUnsignedVarInt(in);
-                    int currentLoc = relativeLoc + lastLoc;
-                    lastLoc = currentLoc;
-                    locationsInDocument.locations.add(currentLoc);
-                }
+        /**
+         * Reads the list of documents of versions before 6 into a table.
+         */
+        private DocumentTable readLegacyDocuments() throws IOException {
+            ByteBuffer header = buffer.duplicate();
+            header.position(4);
+            int docCount = Varint.readUnsignedVarInt(header);
+            DataInputStream in = getInputStream(header.position());
+            TreeMap<Integer, String[]> documents = new TreeMap<Integer, String[]>();
+            for (int i = 0; i < docCount; i++) {
+                int docID = Varint.readUnsignedVarInt(in);
+                String url = in.readUTF();
+                String title = in.readUTF();
+                documents.put(docID, new String[]{url, title});
+            }
 
-                if (locationsInDocument.totalFrequency > 0 && locCount == 0) {
-                    highFreqWords.add(word);
-                }
+            DocumentTable.Writer writer = new DocumentTable.Writer();
+            for (Map.Entry<Integer, String[]> entry : documents.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
             }
+            return new DocumentTable(writer.toBuffer());
+        }
 
-            return documentsForWord;
+        private ByteBuffer getSlice(int offset, int length) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(offset + length);
+            slice.position(offset);
+            return slice.slice();
         }
     }
 }
@@ -16,14 +16,22 @@ import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.logging.Logger;
+import jchmlib.AbstractIndexSearcher;
+import jchmlib.AbstractIndexSearcher.SearchResult;
 import jchmlib.ChmCollectFilesEnumerator;
 import jchmlib.ChmFile;
 import jchmlib.ChmIndexSearcher;
 import jchmlib.ChmSearchEnumerator;
 import jchmlib.ChmTopicsTree;
 import jchmlib.ChmUnitInfo;
+import jchmlib.SearchResults;
+import org.jchmlib.app.ChmIndexEngine.BuildStatistics;
+import org.jchmlib.app.IndexBuildService.BuildStatus;
+import org.jchmlib.app.LibrarySearcher.LibraryResult;
+import org.jchmlib.app.LibrarySearcher.LibraryResults;
 import org.jchmlib.app.net.HttpRequest;
 import org.jchmlib.app.net.HttpResponse;
 
@@ -92,6 +100,7 @@ public class ChmWeb extends Thread {
 
         //Start running Server thread
         start();
+        LibrarySearcher.getDefault().add(this);
 
         return true;
     }
@@ -165,8 +174,10 @@ public class ChmWeb extends Thread {
         }
 
         interrupt();
+        LibrarySearcher.getDefault().remove(this);
 
         if (engine != null) {
+            IndexBuildService.getDefault().cancel(engine);
             engine.close();
             engine = null;
         }
@@ -200,7 +211,7 @@ public class ChmWeb extends Thread {
         }
     }
 
-    public ChmIndexEngine getIndexEngine() {
+    public synchronized ChmIndexEngine getIndexEngine() {
         if (engine == null) {
             engine = new ChmIndexEngine(chmFile, chmFilePath);
             addStopWordsToIndexEngine();
@@ -209,6 +220,29 @@ public class ChmWeb extends Thread {
         return engine;
     }
 
+    /**
+     * @return the built-in index of the archive if it has one, or the index
+     * built by {@link ChmIndexEngine} if ready, or null.
+     */
+    AbstractIndexSearcher getIndexSearcher() {
+        ChmIndexSearcher searcher = chmFile.getIndexSearcher();
+        if (!searcher.notSearchable) {
+            return searcher;
+        }
+        ChmIndexEngine engine = getIndexEngine();
+        return engine.isSearchable() ? engine : null;
+    }
+
+    /**
+     * Moves the index build of this archive, if queued, to the front of the queue,
+     * as the archive is being viewed.
+     */
+    void prioritizeIndexBuild() {
+        if (engine != null) {
+            IndexBuildService.getDefault().prioritize(engine);
+        }
+    }
+
     private void addStopWordsToIndexEngine() {
         InputStream in = getResourceAsStream("stopwords.txt");
         if (in == null) {
@@ -333,6 +367,8 @@ class ClientHandler extends Thread {
     }
 
     public void run() {
+        IndexBuildService buildService = IndexBuildService.getDefault();
+        buildService.requestStarted();
         try {
             if (requestedFile.equals("/")) {
                 requestedFile = requestedFile.substring(1);
@@ -352,11 +388,13 @@ class ClientHandler extends Thread {
                 }
                 deliverDir();
             } else { // this is a file
+                server.prioritizeIndexBuild();
                 deliverFile();
             }
         } catch (IOException e) {
             LOG.fine("Failed to handle request:  " + e);
         } finally {
+            buildService.requestFinished();
             try {
                 client.close();
             } catch (IOException ignored) {
@@ -464,6 +502,8 @@ class ClientHandler extends Thread {
             deliverFilesTree();
         } else if (requestedFile.equalsIgnoreCase("search.json")) {
             deliverUnifiedSearch();
+        } else if (requestedFile.equalsIgnoreCase("library/search.json")) {
+            deliverLibrarySearch();
         } else if (requestedFile.equalsIgnoreCase("index.json")) {
             deliverBuildIndex();
         } else if (requestedFile.equalsIgnoreCase("search3.json")) {
@@ -678,25 +718,22 @@ class ClientHandler extends Thread {
             LOG.fine("empty query");
             return;
         }
-        boolean useRegex = false;
-        String sUseRegex = request.getParameter("regex");
-        if (sUseRegex != null && (sUseRegex.equals("1") || sUseRegex.equalsIgnoreCase("true"))) {
-            useRegex = true;
-        }
-        LOG.fine(String.format("query: %s, regex: %s", query, useRegex));
+        boolean useRegex = getBooleanParameter("regex");
+        boolean titlesOnly = getBooleanParameter("titles");
+        LOG.fine(String.format("query: %s, regex: %s, titles: %s", query, useRegex, titlesOnly));
 
         int maxResults = 300;
 
         if (!useRegex) {
-            ChmIndexSearcher searcher = chmFile.getIndexSearcher();
-            if (!searcher.notSearchable) {
-                HashMap<String, String> results = searcher.search(query, false, false, maxResults);
-                deliverSearchResults(results);
-                return;
-            }
-            ChmIndexEngine engine = server.getIndexEngine();
-            if (engine.isSearchable()) {
-                HashMap<String, String> results = engine.search(query, true, false, maxResults);
+            int offset = getIntParameter("offset", 0);
+            // a page is never unbounded
+            int limit = Math.min(Math.max(getIntParameter("limit", maxResults), 1), maxResults);
+            String cursor = request.getParameter("cursor");
+
+            AbstractIndexSearcher searcher = server.getIndexSearcher();
+            if (searcher != null) {
+                SearchResults results = cursor != null ? searcher.searchByCursor(cursor, limit)
+                        : searcher.search(query, false, titlesOnly, offset, limit);
                 deliverSearchResults(results);
                 return;
             }
@@ -712,6 +749,104 @@ class ClientHandler extends Thread {
         }
     }
 
+    /**
+     * Searches all archives served by this process, see {@link LibrarySearcher}.
+     * Results link to the servers of their archives.
+     */
+    private void deliverLibrarySearch() {
+        String query = request.getParameter("q");
+        if (query == null) {
+            LOG.fine("empty query");
+            return;
+        }
+        boolean titlesOnly = getBooleanParameter("titles");
+        int limit = Math.min(Math.max(getIntParameter("limit", 100), 1),
+                LibrarySearcher.MAX_RESULTS);
+        int timeout = Math.min(getIntParameter("timeout", 2000),
+                LibrarySearcher.MAX_TIMEOUT_MILLIS);
+        LOG.fine(String.format("library query: %s, titles: %s", query, titlesOnly));
+
+        LibraryResults results = LibrarySearcher.getDefault()
+                .search(query, titlesOnly, limit, timeout);
+
+        String host = client.getLocalAddress().getHostAddress();
+        if (host.indexOf(':') >= 0) { // IPv6
+            host = "[" + host + "]";
+        }
+
+        response.sendHeader("application/json");
+        response.sendLine(String.format("{\"ok\": %s, %s: %d, %s: %d, %s: [",
+                results.getResults().size() > 0,
+                quoteJSON("archives"), results.getArchiveCount(),
+                quoteJSON("total"), results.getTotalHits(),
+                quoteJSON("timedOut")));
+        int i = 0;
+        for (ChmWeb archive : results.getTimedOut()) {
+            if (i++ > 0) {
+                response.sendLine(",");
+            }
+            response.sendString(quoteJSON(archive.getChmFilePath()));
+        }
+        response.sendLine("], \"results\":[");
+        i = 0;
+        for (LibraryResult result : results.getResults()) {
+            if (i++ > 0) {
+                response.sendLine(",");
+            }
+            String url = String.format("http://%s:%d%s", host,
+                    result.archive.getServerPort(), fixChmLink(result.result.url));
+            response.sendString(String.format(Locale.US, "[%s, %s, %s, %.4f]",
+                    quoteJSON(url), quoteJSON(result.result.topic),
+                    quoteJSON(result.archive.getChmTitle()), result.result.score));
+        }
+        response.sendLine("]}");
+    }
+
+    private boolean getBooleanParameter(String name) {
+        String value = request.getParameter(name);
+        return value != null && (value.equals("1") || value.equalsIgnoreCase("true"));
+    }
+
+    private int getIntParameter(String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(Integer.parseInt(value.trim()), 0);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param results a page of results, or null if there was nothing to search for.
+     * A page may be empty, when past the last result.
+     */
+    private void deliverSearchResults(SearchResults results) {
+        response.sendHeader("application/json");
+        if (results == null) {
+            response.sendLine("{\"ok\": false}");
+            return;
+        }
+
+        response.sendLine(String.format("{\"ok\": true, %s: %d, %s: %d, %s: %s, \"results\":[",
+                quoteJSON("total"), results.getTotalHits(),
+                quoteJSON("offset"), results.getOffset(),
+                quoteJSON("next"), results.getNextCursor() == null ? "null"
+                        : quoteJSON(results.getNextCursor())));
+        int i = 0;
+        for (SearchResult result : results.getResults()) {
+            if (i > 0) {
+                response.sendLine(",");
+            }
+            response.sendString(String.format("[%s, %s]",
+                    quoteJSON(fixChmLink(result.url)), quoteJSON(result.topic)));
+            i++;
+        }
+        response.sendLine("]}");
+    }
+
     private void deliverSearchResults(HashMap<String, String> results) {
         response.sendHeader("application/json");
         if (results != null && results.size() > 0) {
@@ -757,16 +892,23 @@ class ClientHandler extends Thread {
     }
 
     private void deliverBuildIndex() {
-        final ChmIndexEngine engine = server.getIndexEngine();
+        ChmIndexEngine engine = server.getIndexEngine();
+        IndexBuildService buildService = IndexBuildService.getDefault();
         if (engine.getBuildIndexStep() < 0) {
-            new Thread() {
-                public void run() {
-                    engine.buildIndex();
-                }
-            }.start();
+            buildService.submit(engine, true);
         }
         response.sendHeader("application/json");
-        response.sendLine(String.format("{\"step\": %d}", engine.getBuildIndexStep()));
+        BuildStatus status = buildService.getStatus(engine);
+        if (status == null) {
+            response.sendLine(String.format("{\"step\": %d}", engine.getBuildIndexStep()));
+            return;
+        }
+        response.sendLine(String.format(Locale.US, "{\"step\": %d, \"state\": %s, "
+                        + "\"queuePosition\": %d, \"processedFiles\": %d, \"totalFiles\": %d, "
+                        + "\"filesPerSecond\": %.1f, \"etaMillis\": %d}",
+                engine.getBuildIndexStep(), quoteJSON(status.getState()),
+                status.getQueuePosition(), status.getProcessedFileCount(),
+                status.getTotalFileCount(), status.getThroughput(), status.getEtaMillis()));
     }
 
     private void deliverSearch3() {
@@ -782,7 +924,7 @@ class ClientHandler extends Thread {
             return;
         }
 
-        HashMap<String, String> results = engine.search(query, true, false, 0);
+        HashMap<String, String> results = engine.search(query, false, false, 0);
         deliverSearchResults(results);
     }
 
@@ -805,11 +947,27 @@ class ClientHandler extends Thread {
         response.sendLine(String.format("%s: %s,",
                 quoteJSON("hasIndex"), !searcher.notSearchable));
 
+        AbstractIndexSearcher activeSearcher = searcher;
         if (searcher.notSearchable) {
             ChmIndexEngine engine = server.getIndexEngine();
             response.sendLine(String.format("%s: %d,",
                     quoteJSON("buildIndexStep"), engine.getBuildIndexStep()));
-        }
+            response.sendLine(String.format("%s: %d,",
+                    quoteJSON("indexSegments"), engine.getSegmentCount()));
+            BuildStatistics statistics = engine.getBuildStatistics();
+            response.sendLine(String.format("%s: {\"memoryBudget\": %d, \"resumedDocs\": %d, "
+                            + "\"partitions\": %d, \"partitionDocs\": %s, \"partitionBytes\": %s, "
+                            + "\"flushMillis\": %s, \"mergeMillis\": %d, \"buildMillis\": %d},",
+                    quoteJSON("indexBuild"), statistics.getMemoryBudget(),
+                    statistics.getResumedDocCount(), statistics.getPartitionCount(),
+                    statistics.getPartitionDocCounts(), statistics.getPartitionFileSizes(),
+                    statistics.getFlushTimes(),
+                    statistics.getMergeTime(), statistics.getBuildTime()));
+            activeSearcher = engine;
+        }
+        response.sendLine(String.format(Locale.US, "%s: {\"hits\": %d, \"misses\": %d, \"hitRate\": %.3f},",
+                quoteJSON("searchCache"), activeSearcher.getCacheHitCount(),
+                activeSearcher.getCacheMissCount(), activeSearcher.getCacheHitRate()));
 
         response.sendLine("\"ok\": true");
 
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.util.Arrays;
+import jchmlib.Tokenizer;
+
+/**
+ * Collects the distinct words of a document with their locations.
+ * <p>
+ * Words of the title are indexed as separate terms, prefixed with {@link #TITLE_FIELD}.
+ * Their locations follow the ones of the body, one location apart, so that the postings
+ * of a word in the body and in the title can be merged without forming false phrases.
+ * <p>
+ * Words are kept in a reused char buffer, and looked up in an open addressing table of
+ * local term IDs, so no string is created per word. An inverter is not thread-safe,
+ * and is meant to be reused for many documents by one thread.
+ */
+class DocumentInverter implements Tokenizer.TokenHandler {
+
+    /**
+     * Longer words are counted for locations, but not indexed.
+     */
+    static final int MAX_WORD_LENGTH = 16;
+    /**
+     * Prefix of title terms. It is a control character, which is never part of a word.
+     */
+    static final char TITLE_FIELD = '\u0001';
+
+    private final Tokenizer tokenizer;
+    private char[] termChars = new char[1024];
+    private int termCharsLength = 0;
+    private int[] termStarts = new int[256];
+    private int[] termLengths = new int[256];
+    private int termCount = 0;
+    /**
+     * term ID + 1 by hash, 0 for empty slots.
+     */
+    private int[] table = new int[512];
+    /**
+     * term ID and location of each indexed word, in document order.
+     */
+    private int[] tokenTerms = new int[1024];
+    private int[] tokenLocations = new int[1024];
+    private int tokenCount = 0;
+    private int location = -1;
+    private boolean inTitle = false;
+    private final char[] titleWord = new char[MAX_WORD_LENGTH + 1];
+
+    DocumentInverter(Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * @param title the title text, or null if there is none.
+     */
+    InvertedDocument invert(CharSequence text, CharSequence title) {
+        termCharsLength = 0;
+        termCount = 0;
+        tokenCount = 0;
+        location = -1;
+        Arrays.fill(table, 0);
+
+        tokenizer.tokenize(text, this);
+        int wordCount = location + 1;
+        if (title != null) {
+            // skip a location between the body and the title
+            location = wordCount;
+            inTitle = true;
+            tokenizer.tokenize(title, this);
+            inTitle = false;
+        }
+        return buildDocument(wordCount);
+    }
+
+    @Override
+    public void onToken(char[] word, int length) {
+        if (tokenizer.isStopWord(word, length)) {
+            return;
+        }
+        location++;
+        if (length > MAX_WORD_LENGTH) {
+            return;
+        }
+
+        if (tokenCount == tokenTerms.length) {
+            tokenTerms = Arrays.copyOf(tokenTerms, tokenCount * 2);
+            tokenLocations = Arrays.copyOf(tokenLocations, tokenCount * 2);
+        }
+        if (inTitle) {
+            titleWord[0] = TITLE_FIELD;
+            System.arraycopy(word, 0, titleWord, 1, length);
+            tokenTerms[tokenCount] = getTermId(titleWord, length + 1);
+        } else {
+            tokenTerms[tokenCount] = getTermId(word, length);
+        }
+        tokenLocations[tokenCount] = location;
+        tokenCount++;
+    }
+
+    private int getTermId(char[] word, int length) {
+        int mask = table.length - 1;
+        int slot = hash(word, 0, length) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            int termId = entry - 1;
+            if (termLengths[termId] == length
+                    && regionEquals(termChars, termStarts[termId], word, 0, length)) {
+                return termId;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (termCount == termStarts.length) {
+            termStarts = Arrays.copyOf(termStarts, termCount * 2);
+            termLengths = Arrays.copyOf(termLengths, termCount * 2);
+        }
+        if (termCharsLength + length > termChars.length) {
+            termChars = Arrays.copyOf(termChars,
+                    Math.max(termChars.length * 2, termCharsLength + length));
+        }
+        System.arraycopy(word, 0, termChars, termCharsLength, length);
+        int termId = termCount++;
+        termStarts[termId] = termCharsLength;
+        termLengths[termId] = length;
+        termCharsLength += length;
+        table[slot] = termId + 1;
+
+        if (termCount * 2 > table.length) {
+            rehash();
+        }
+        return termId;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int termId = 0; termId < termCount; termId++) {
+            int slot = hash(termChars, termStarts[termId], termLengths[termId]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = termId + 1;
+        }
+    }
+
+    /**
+     * Groups locations by term with a counting sort, which keeps them in document order.
+     */
+    private InvertedDocument buildDocument(int wordCount) {
+        InvertedDocument doc = new InvertedDocument();
+        doc.wordCount = wordCount;
+        doc.termCount = termCount;
+        doc.termChars = Arrays.copyOf(termChars, termCharsLength);
+        doc.termStarts = Arrays.copyOf(termStarts, termCount + 1);
+        doc.termStarts[termCount] = termCharsLength;
+        doc.frequencies = new int[termCount];
+        for (int i = 0; i < tokenCount; i++) {
+            doc.frequencies[tokenTerms[i]]++;
+        }
+
+        doc.locationStarts = new int[termCount + 1];
+        for (int termId = 0; termId < termCount; termId++) {
+            doc.locationStarts[termId + 1] = doc.locationStarts[termId] + doc.frequencies[termId];
+        }
+        doc.locations = new int[tokenCount];
+        int[] next = Arrays.copyOf(doc.locationStarts, termCount);
+        for (int i = 0; i < tokenCount; i++) {
+            doc.locations[next[tokenTerms[i]]++] = tokenLocations[i];
+        }
+        return doc;
+    }
+
+    static int hash(char[] chars, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        // spreads close values, like those of CJK bigrams, over the whole table
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    static boolean regionEquals(char[] a, int aStart, char[] b, int bStart, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The distinct words of a document, by local term ID.
+     * Term i is {@code termChars[termStarts[i]..termStarts[i + 1])}, and its locations are
+     * {@code locations[locationStarts[i]..locationStarts[i + 1])}.
+     */
+    static class InvertedDocument {
+
+        /**
+         * number of words in the body.
+         */
+        int wordCount;
+        int termCount;
+        char[] termChars;
+        int[] termStarts;
+        int[] frequencies;
+        int[] locationStarts;
+        int[] locations;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The url and title of each document of an index, by document ID, read in place
+ * from a buffer (usually a slice of the mapped index file).
+ * <p>
+ * Document IDs are consecutive, from the first one of the table. Urls and titles are
+ * front coded in blocks of {@link #BLOCK_SIZE} documents, like the words of
+ * {@link TermDictionary}: the first document of a block has its url and title whole,
+ * and each other one the length of the prefix it shares with those of the document
+ * before it, followed by the rest of them.
+ * <pre>
+ * first document ID, document count, block count (ints)
+ * offset of each block from the start of the table (ints)
+ * blocks: for each document, for its url then its title:
+ *         shared prefix length, suffix length, suffix chars (varints)
+ * </pre>
+ * A document without url (a gap in the IDs) has an empty one, and a document without title
+ * an empty one. Finding a document reads one block offset and decodes at most a block,
+ * and nothing is kept on the heap however many documents there are.
+ * A table is thread-safe, but each thread needs its own {@link Cursor}.
+ */
+class DocumentTable {
+
+    static final int BLOCK_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final int firstDocId;
+    private final int docCount;
+
+    /**
+     * @param buffer the table, from position 0. Only absolute gets are used.
+     */
+    DocumentTable(ByteBuffer buffer) {
+        this.buffer = buffer;
+        firstDocId = buffer.getInt(0);
+        docCount = buffer.getInt(4);
+    }
+
+    int getFirstDocId() {
+        return firstDocId;
+    }
+
+    int size() {
+        return docCount;
+    }
+
+    /**
+     * @return the url of the document, or null if not found.
+     */
+    String getUrl(int docId) {
+        Cursor cursor = seek(docId);
+        return cursor == null || cursor.getUrl().length() == 0 ? null : cursor.getUrl();
+    }
+
+    /**
+     * @return the title of the document, or null if not found or if it has none.
+     */
+    String getTitle(int docId) {
+        Cursor cursor = seek(docId);
+        return cursor == null || cursor.getTitle().length() == 0 ? null : cursor.getTitle();
+    }
+
+    /**
+     * @return a cursor before the first document.
+     */
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * @return a cursor on the document, or null if it is not in the table.
+     */
+    Cursor seek(int docId) {
+        int index = docId - firstDocId;
+        if (index < 0 || index >= docCount) {
+            return null;
+        }
+        Cursor cursor = new Cursor();
+        cursor.index = index - index % BLOCK_SIZE - 1;
+        while (cursor.index < index) {
+            cursor.next();
+        }
+        return cursor;
+    }
+
+    private int getBlockOffset(int block) {
+        return buffer.getInt(12 + 4 * block);
+    }
+
+    /**
+     * Iterates the documents in order, from where it was created.
+     */
+    class Cursor {
+
+        private final ByteBuffer in = buffer.duplicate();
+        private int index = -1;
+        private final FrontCodedString url = new FrontCodedString();
+        private final FrontCodedString title = new FrontCodedString();
+
+        /**
+         * Moves to the next document.
+         *
+         * @return false if there is none.
+         */
+        boolean next() {
+            if (index + 1 >= docCount) {
+                index = docCount;
+                return false;
+            }
+            index++;
+            if (index % BLOCK_SIZE == 0) {
+                in.position(getBlockOffset(index / BLOCK_SIZE));
+            }
+            url.read(in);
+            title.read(in);
+            return true;
+        }
+
+        int getDocId() {
+            return firstDocId + index;
+        }
+
+        String getUrl() {
+            return url.toString();
+        }
+
+        String getTitle() {
+            return title.toString();
+        }
+    }
+
+    private static class FrontCodedString {
+
+        private char[] chars = new char[64];
+        private int length = 0;
+        private String string = null;
+
+        void read(ByteBuffer in) {
+            int shared = Varint.readUnsignedVarInt(in);
+            int suffixLength = Varint.readUnsignedVarInt(in);
+            length = shared + suffixLength;
+            if (length > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(length, chars.length * 2));
+            }
+            for (int i = shared; i < length; i++) {
+                chars[i] = (char) Varint.readUnsignedVarInt(in);
+            }
+            string = null;
+        }
+
+        @Override
+        public String toString() {
+            if (string == null) {
+                string = new String(chars, 0, length);
+            }
+            return string;
+        }
+    }
+
+    /**
+     * Writes a table, from documents added by increasing ID.
+     */
+    static class Writer {
+
+        private final ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(blocks);
+        private int[] blockOffsets = new int[64];
+        private int firstDocId = 0;
+        private int docCount = 0;
+        private String lastUrl = "";
+        private String lastTitle = "";
+
+        /**
+         * Adds a document. Documents skipped since the last one are added without url.
+         *
+         * @param title the title, or null if it has none.
+         */
+        void add(int docId, String url, String title) throws IOException {
+            if (docCount == 0) {
+                firstDocId = docId;
+            } else if (docId < firstDocId + docCount) {
+                throw new IOException("Document " + docId + " is out of order");
+            }
+            while (firstDocId + docCount < docId) {
+                addEntry("", "");
+            }
+            addEntry(url, title == null ? "" : title);
+        }
+
+        private void addEntry(String url, String title) throws IOException {
+            boolean blockStart = docCount % BLOCK_SIZE == 0;
+            if (blockStart) {
+                int block = docCount / BLOCK_SIZE;
+                if (block == blockOffsets.length) {
+                    blockOffsets = Arrays.copyOf(blockOffsets, block * 2);
+                }
+                blockOffsets[block] = blocks.size();
+            }
+            write(blockStart ? "" : lastUrl, url);
+            write(blockStart ? "" : lastTitle, title);
+            lastUrl = url;
+            lastTitle = title;
+            docCount++;
+        }
+
+        private void write(String last, String s) throws IOException {
+            int shared = 0;
+            int maxShared = Math.min(last.length(), s.length());
+            while (shared < maxShared && last.charAt(shared) == s.charAt(shared)) {
+                shared++;
+            }
+            Varint.writeUnsignedVarInt(shared, out);
+            Varint.writeUnsignedVarInt(s.length() - shared, out);
+            for (int i = shared; i < s.length(); i++) {
+                Varint.writeUnsignedVarInt(s.charAt(i), out);
+            }
+        }
+
+        int size() {
+            return docCount;
+        }
+
+        /**
+         * @return estimated heap size in bytes.
+         */
+        long getMemoryUsage() {
+            // the stream buffer grows by doubling
+            return 2L * blocks.size() + 4L * blockOffsets.length;
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            int blockCount = (docCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            int headerSize = 12 + 4 * blockCount;
+            target.writeInt(firstDocId);
+            target.writeInt(docCount);
+            target.writeInt(blockCount);
+            for (int block = 0; block < blockCount; block++) {
+                target.writeInt(headerSize + blockOffsets[block]);
+            }
+            blocks.writeTo(target);
+        }
+
+        /**
+         * @return the table in a buffer.
+         */
+        ByteBuffer toBuffer() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeTo(new DataOutputStream(bytes));
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+    }
+}
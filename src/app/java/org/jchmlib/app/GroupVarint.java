@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes non-negative ints in groups of four: a control byte holding the byte length
+ * (1 to 4) of each value in two bits, followed by the values in little endian.
+ * <p>
+ * Unlike {@link Varint}, there is no branch per byte when decoding, and
+ * a whole block of values is decoded in one tight loop.
+ * The last group may have less than four values; its unused control bits are 0.
+ */
+final class GroupVarint {
+
+    private GroupVarint() {
+    }
+
+    static void write(int[] values, int offset, int count, ByteArrayOutputStream out) {
+        for (int i = 0; i < count; i += 4) {
+            int groupSize = Math.min(4, count - i);
+            int control = 0;
+            for (int k = 0; k < groupSize; k++) {
+                control |= (getByteLength(values[offset + i + k]) - 1) << (2 * k);
+            }
+            out.write(control);
+            for (int k = 0; k < groupSize; k++) {
+                int value = values[offset + i + k];
+                int length = getByteLength(value);
+                for (int b = 0; b < length; b++) {
+                    out.write(value >>> (8 * b));
+                }
+            }
+        }
+    }
+
+    private static int getByteLength(int value) {
+        if ((value >>> 8) == 0) {
+            return 1;
+        } else if ((value >>> 16) == 0) {
+            return 2;
+        } else if ((value >>> 24) == 0) {
+            return 3;
+        }
+        return 4;
+    }
+
+    /**
+     * Decodes values with absolute gets, leaving the position of the buffer alone.
+     *
+     * @return the position after the decoded values.
+     */
+    static int read(ByteBuffer in, int position, int[] values, int offset, int count) {
+        for (int i = 0; i < count; i += 4) {
+            int control = in.get(position++) & 0xff;
+            int groupSize = Math.min(4, count - i);
+            for (int k = 0; k < groupSize; k++) {
+                int length = ((control >>> (2 * k)) & 3) + 1;
+                int value = 0;
+                for (int b = 0; b < length; b++) {
+                    value |= (in.get(position++) & 0xff) << (8 * b);
+                }
+                values[offset + i + k] = value;
+            }
+        }
+        return position;
+    }
+}
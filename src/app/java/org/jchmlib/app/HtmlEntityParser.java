@@ -1,7 +1,6 @@
 package org.jchmlib.app;
 
-import java.io.StringWriter;
-import java.util.HashMap;
+import java.util.Arrays;
 
 class HtmlEntityParser {
     private static final String[][] ESCAPES = {
@@ -110,99 +109,89 @@ class HtmlEntityParser {
             {"\u00FE", "thorn"}, // ю - lowercase thorn, Icelandic
             {"\u00FF", "yuml"}, // я - lowercase y, umlaut
     };
-    private static final int MIN_ESCAPE = 2;
-    private static final int MAX_ESCAPE = 6;
-    private static final HashMap<String, CharSequence> lookupMap;
+    private static final int TABLE_BITS = 11;
+    /**
+     * Names and characters of the escapes in a perfect hash table: no two names
+     * have the same slot with {@link #seed}, so a lookup compares at most one name.
+     */
+    private static final char[][] names = new char[1 << TABLE_BITS][];
+    private static final char[] values = new char[1 << TABLE_BITS];
+    private static final int seed;
 
     static {
-        lookupMap = new HashMap<String, CharSequence>();
-        for (final CharSequence[] seq : ESCAPES) {
-            lookupMap.put(seq[1].toString(), seq[0]);
+        int s = 0;
+        while (!fillTable(s)) {
+            s++;
         }
+        seed = s;
     }
 
-    static String parse(final String input) {
-        StringWriter writer = null;
-        int len = input.length();
-        int i = 1;
-        int st = 0;
-        while (true) {
-            // look for '&'
-            while (i < len && input.charAt(i - 1) != '&') {
-                i++;
+    private static boolean fillTable(int seed) {
+        Arrays.fill(names, null);
+        for (String[] escape : ESCAPES) {
+            char[] name = escape[1].toCharArray();
+            int slot = hash(seed, name, 0, name.length);
+            if (names[slot] != null) {
+                return false;
             }
-            if (i >= len) {
-                break;
-            }
-
-            // found '&', look for ';'
-            int j = i;
-            while (j < len && j < i + MAX_ESCAPE + 1 && input.charAt(j) != ';') {
-                j++;
-            }
-            if (j == len || j < i + MIN_ESCAPE || j == i + MAX_ESCAPE + 1) {
-                i++;
-                continue;
-            }
-
-            // found escape
-            if (input.charAt(i) == '#') {
-                // numeric escape
-                int k = i + 1;
-                int radix = 10;
-
-                final char firstChar = input.charAt(k);
-                if (firstChar == 'x' || firstChar == 'X') {
-                    k++;
-                    radix = 16;
-                }
-
-                try {
-                    int entityValue = Integer.parseInt(input.substring(k, j), radix);
-
-                    if (writer == null) {
-                        writer = new StringWriter(input.length());
-                    }
-                    writer.append(input.substring(st, i - 1));
-
-                    if (entityValue > 0xFFFF) {
-                        final char[] chars = Character.toChars(entityValue);
-                        writer.write(chars[0]);
-                        writer.write(chars[1]);
-                    } else {
-                        writer.write(entityValue);
-                    }
+            names[slot] = name;
+            values[slot] = escape[0].charAt(0);
+        }
+        return true;
+    }
 
-                } catch (NumberFormatException ex) {
-                    i++;
-                    continue;
-                }
-            } else {
-                // named escape
-                CharSequence value = lookupMap.get(input.substring(i, j));
-                if (value == null) {
-                    i++;
-                    continue;
-                }
+    private static int hash(int seed, char[] chars, int start, int length) {
+        int h = seed;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return (h * 0x9e3779b9) >>> (32 - TABLE_BITS);
+    }
 
-                if (writer == null) {
-                    writer = new StringWriter(input.length());
+    /**
+     * Decodes an entity, named (like {@code amp}) or numeric (like {@code #38} or {@code #x26}).
+     *
+     * @param chars the entity, without the leading '&amp;' and the trailing ';'.
+     * @return the code point of the entity, or -1 if it is unknown or invalid.
+     */
+    static int parse(char[] chars, int start, int length) {
+        if (length == 0) {
+            return -1;
+        }
+        if (chars[start] != '#') {
+            int slot = hash(seed, chars, start, length);
+            char[] name = names[slot];
+            if (name == null || name.length != length) {
+                return -1;
+            }
+            for (int i = 0; i < length; i++) {
+                if (name[i] != chars[start + i]) {
+                    return -1;
                 }
-                writer.append(input.substring(st, i - 1));
-
-                writer.append(value);
             }
-
-            // skip escape
-            st = j + 1;
-            i = st;
+            return values[slot];
         }
 
-        if (writer != null) {
-            writer.append(input.substring(st, len));
-            return writer.toString();
+        int i = start + 1;
+        int radix = 10;
+        if (i < start + length && (chars[i] == 'x' || chars[i] == 'X')) {
+            i++;
+            radix = 16;
+        }
+        if (i == start + length) {
+            return -1;
+        }
+        int codePoint = 0;
+        for (; i < start + length; i++) {
+            int digit = Character.digit(chars[i], radix);
+            if (digit < 0) {
+                return -1;
+            }
+            codePoint = codePoint * radix + digit;
+            if (codePoint > Character.MAX_CODE_POINT) {
+                return -1;
+            }
         }
-        return input;
+        return codePoint;
     }
-
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.logging.Logger;
+
+/**
+ * Converts HTML documents to text, straight from their bytes.
+ * <p>
+ * Tags are replaced with spaces, so that they still separate words, entities are decoded,
+ * and the content of script and style elements is skipped. The text of the first title
+ * element is picked up on the way.
+ * <p>
+ * Bytes are decoded in chunks into a reused buffer, and the state of the parser carries over
+ * from one chunk to the next, so the text and the title are all that is allocated
+ * for a document. An extractor is not thread-safe, each thread needs its own.
+ */
+class HtmlTextExtractor {
+
+    private static final Logger LOG = Logger.getLogger(HtmlTextExtractor.class.getName());
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_TITLE_LENGTH = 1000;
+    /**
+     * Longer tag names are not recognized.
+     */
+    private static final int MAX_TAG_NAME_LENGTH = 8;
+    /**
+     * Longer entities are left as they are.
+     */
+    private static final int MAX_ENTITY_LENGTH = 10;
+    private static final char[] SCRIPT_END = "</script".toCharArray();
+    private static final char[] STYLE_END = "</style".toCharArray();
+
+    private enum State {
+        TEXT, TAG, QUOTES, ENTITY, RAW_TEXT
+    }
+
+    private final CharsetDecoder decoder;
+    private final CharBuffer chunk = CharBuffer.allocate(CHUNK_SIZE);
+    private final StringBuilder titleBuilder = new StringBuilder();
+
+    private StringBuilder text;
+    private State state;
+    private char quoteChar;
+    private final char[] tagName = new char[MAX_TAG_NAME_LENGTH];
+    private int tagNameLength;
+    private boolean inTagName;
+    private char lastTagChar;
+    private final char[] entity = new char[MAX_ENTITY_LENGTH];
+    private int entityLength;
+    /**
+     * end tag closing the raw text of a script or style element, and how much of it was seen.
+     */
+    private char[] rawTextEnd;
+    private int rawTextEndMatched;
+    private int titleStart;
+    private int titleEnd;
+    private String title;
+
+    /**
+     * @param encoding the encoding of the documents, see {@link jchmlib.ChmFile#getEncoding()}.
+     */
+    HtmlTextExtractor(String encoding) {
+        Charset charset;
+        try {
+            charset = Charset.forName(encoding);
+        } catch (IllegalArgumentException e) {
+            LOG.info("Unsupported encoding " + encoding + ", using the default one");
+            charset = Charset.defaultCharset();
+        }
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Extracts the text of a document.
+     *
+     * @param content the document, from its position to its limit, which are left unchanged.
+     * @return the text of the document.
+     */
+    StringBuilder extract(ByteBuffer content) {
+        ByteBuffer in = content.duplicate();
+        text = new StringBuilder(in.remaining());
+        state = State.TEXT;
+        titleStart = -1;
+        titleEnd = -1;
+
+        decoder.reset();
+        while (decoder.decode(in, chunk, true).isOverflow()) {
+            processChunk();
+        }
+        CoderResult result;
+        do {
+            result = decoder.flush(chunk);
+            processChunk();
+        } while (result.isOverflow());
+        if (state == State.ENTITY) {
+            appendEntity();
+        }
+
+        title = titleStart >= 0 && titleEnd >= 0 ? collapseSpaces(titleStart, titleEnd) : null;
+        StringBuilder extracted = text;
+        text = null;
+        return extracted;
+    }
+
+    /**
+     * @return the text of the title element of the last document,
+     * with runs of white space collapsed, or null if there is none.
+     */
+    String getTitle() {
+        return title;
+    }
+
+    private void processChunk() {
+        chunk.flip();
+        char[] chars = chunk.array();
+        int end = chunk.arrayOffset() + chunk.limit();
+        for (int i = chunk.arrayOffset() + chunk.position(); i < end; i++) {
+            process(chars[i]);
+        }
+        chunk.clear();
+    }
+
+    private void process(char c) {
+        switch (state) {
+            case TEXT:
+                if (c == '<') {
+                    state = State.TAG;
+                    tagNameLength = 0;
+                    inTagName = true;
+                    text.append(' ');
+                } else if (c == '&') {
+                    state = State.ENTITY;
+                    entityLength = 0;
+                } else {
+                    text.append(c);
+                }
+                break;
+            case TAG:
+                if (c == '>') {
+                    endTag();
+                    break;
+                }
+                if (c == '"' || c == '\'') {
+                    state = State.QUOTES;
+                    quoteChar = c;
+                    inTagName = false;
+                } else if (inTagName) {
+                    if (c <= ' ' || (c == '/' && tagNameLength > 0)) {
+                        inTagName = false;
+                    } else {
+                        if (tagNameLength < MAX_TAG_NAME_LENGTH) {
+                            tagName[tagNameLength] = Character.toLowerCase(c);
+                        }
+                        tagNameLength++;
+                    }
+                }
+                lastTagChar = c;
+                break;
+            case QUOTES:
+                if (c == quoteChar) {
+                    state = State.TAG;
+                    lastTagChar = c;
+                }
+                break;
+            case ENTITY:
+                if (entityLength < MAX_ENTITY_LENGTH
+                        && (Character.isLetterOrDigit(c) || (c == '#' && entityLength == 0))) {
+                    entity[entityLength++] = c;
+                    break;
+                }
+                state = State.TEXT;
+                if (c == ';') {
+                    int codePoint = HtmlEntityParser.parse(entity, 0, entityLength);
+                    if (codePoint >= 0) {
+                        text.appendCodePoint(codePoint);
+                    } else {
+                        appendEntity();
+                        text.append(c);
+                    }
+                } else {
+                    appendEntity();
+                    process(c);
+                }
+                break;
+            case RAW_TEXT:
+                char lowerCase = Character.toLowerCase(c);
+                if (lowerCase == rawTextEnd[rawTextEndMatched]) {
+                    rawTextEndMatched++;
+                    if (rawTextEndMatched == rawTextEnd.length) {
+                        // the rest of the end tag is parsed as any tag
+                        state = State.TAG;
+                        tagNameLength = 0;
+                        inTagName = false;
+                        lastTagChar = c;
+                        text.append(' ');
+                    }
+                } else {
+                    rawTextEndMatched = lowerCase == '<' ? 1 : 0;
+                }
+                break;
+        }
+    }
+
+    private void endTag() {
+        state = State.TEXT;
+        if (isTagName("title")) {
+            if (titleStart < 0) {
+                titleStart = text.length();
+            }
+        } else if (isTagName("/title")) {
+            if (titleStart >= 0 && titleEnd < 0) {
+                titleEnd = text.length();
+            }
+        } else if (lastTagChar != '/') { // not an empty element
+            if (isTagName("script")) {
+                rawTextEnd = SCRIPT_END;
+            } else if (isTagName("style")) {
+                rawTextEnd = STYLE_END;
+            } else {
+                return;
+            }
+            state = State.RAW_TEXT;
+            rawTextEndMatched = 0;
+        }
+    }
+
+    private boolean isTagName(String name) {
+        if (tagNameLength != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < tagNameLength; i++) {
+            if (tagName[i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends an entity which could not be decoded as it was, without its ';'.
+     */
+    private void appendEntity() {
+        text.append('&').append(entity, 0, entityLength);
+    }
+
+    private String collapseSpaces(int start, int end) {
+        titleBuilder.setLength(0);
+        boolean space = false;
+        for (int i = start; i < end && titleBuilder.length() < MAX_TITLE_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (c <= ' ') {
+                space = true;
+                continue;
+            }
+            if (space && titleBuilder.length() > 0) {
+                titleBuilder.append(' ');
+            }
+            space = false;
+            titleBuilder.append(c);
+        }
+        titleBuilder.setLength(Math.min(titleBuilder.length(), MAX_TITLE_LENGTH));
+        return titleBuilder.length() > 0 ? titleBuilder.toString() : null;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import org.jchmlib.app.ChmIndexEngine.BuildStatistics;
+import org.jchmlib.app.ChmIndexEngine.BuildThrottle;
+
+/**
+ * Builds indexes in the background, a few at a time, so that opening many archives
+ * does not start as many builds competing for the CPU.
+ * <p>
+ * Builds wait in a priority queue: archives being viewed come first, the most recently
+ * viewed first, then the others in the order they were submitted.
+ * <p>
+ * Build threads are throttled, so that serving requests stays fast:
+ * each of them only uses a share of a CPU (see {@link #setCpuShare(double)}),
+ * and they pause while requests are being served, for up to
+ * {@link #MAX_REQUEST_WAIT_MILLIS} at a time.
+ */
+public class IndexBuildService {
+
+    private static final Logger LOG = Logger.getLogger(IndexBuildService.class.getName());
+    /**
+     * System properties overriding the default number of workers and CPU share.
+     */
+    private static final String WORKERS_PROPERTY = "org.jchmlib.app.IndexBuildService.workers";
+    private static final String CPU_SHARE_PROPERTY = "org.jchmlib.app.IndexBuildService.cpuShare";
+    /**
+     * longest time a build thread waits for requests to finish, in milliseconds,
+     * so that a slow client does not stop builds.
+     */
+    static final int MAX_REQUEST_WAIT_MILLIS = 50;
+    /**
+     * shortest pause worth sleeping for, in nanoseconds. Shorter ones are added up.
+     */
+    private static final long MIN_PAUSE_NANOS = 1000000;
+
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private static IndexBuildService defaultService = null;
+
+    private final int workerCount;
+    private final ThreadPoolExecutor executor;
+    private final Map<ChmIndexEngine, BuildTask> tasks = new HashMap<ChmIndexEngine, BuildTask>();
+    private long viewSequence = 0;
+    private long submitSequence = 0;
+    /**
+     * number of finished builds, and the time they took, to estimate the time
+     * of queued builds.
+     */
+    private int finishedCount = 0;
+    private long finishedMillis = 0;
+    private volatile double cpuShare;
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final BuildThrottle throttle = new BuildThrottle() {
+        private final ThreadLocal<long[]> pauseDebt = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        @Override
+        public void pause(long busyNanos) throws InterruptedException {
+            double share = cpuShare;
+            if (share < 1) {
+                long[] debt = pauseDebt.get();
+                debt[0] += (long) (busyNanos * (1 - share) / share);
+                if (debt[0] >= MIN_PAUSE_NANOS) {
+                    Thread.sleep(debt[0] / 1000000, (int) (debt[0] % 1000000));
+                    debt[0] = 0;
+                }
+            }
+            waitForRequests();
+        }
+    };
+
+    /**
+     * @param workerCount the maximum number of indexes built at the same time.
+     * @param cpuShare the share of a CPU each build thread may use, in (0, 1].
+     */
+    public IndexBuildService(int workerCount, double cpuShare) {
+        this.workerCount = Math.max(workerCount, 1);
+        setCpuShare(cpuShare);
+        executor = new ThreadPoolExecutor(this.workerCount, this.workerCount,
+                60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "IndexBuildService worker");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the service shared by all servers of the process, with one worker
+     * for every four processors, and half a CPU for each build thread.
+     * Both can be set with the system properties
+     * {@code org.jchmlib.app.IndexBuildService.workers} and
+     * {@code org.jchmlib.app.IndexBuildService.cpuShare}.
+     */
+    public static synchronized IndexBuildService getDefault() {
+        if (defaultService == null) {
+            int processorCount = Runtime.getRuntime().availableProcessors();
+            int workerCount = Integer.getInteger(WORKERS_PROPERTY,
+                    Math.max(processorCount / 4, 1));
+            double cpuShare = 0.5;
+            String share = System.getProperty(CPU_SHARE_PROPERTY);
+            if (share != null) {
+                try {
+                    cpuShare = Double.parseDouble(share);
+                } catch (NumberFormatException ignored) {
+                    LOG.info("Invalid CPU share: " + share);
+                }
+            }
+            defaultService = new IndexBuildService(workerCount, cpuShare);
+        }
+        return defaultService;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Sets the share of a CPU each build thread may use. 1 means no limit.
+     */
+    public void setCpuShare(double cpuShare) {
+        this.cpuShare = Math.min(Math.max(cpuShare, 0.01), 1);
+    }
+
+    public double getCpuShare() {
+        return cpuShare;
+    }
+
+    /**
+     * Queues the build of the index of an engine, unless it is queued or running already.
+     * A finished or failed build is submitted again.
+     *
+     * @param viewed whether the archive is being viewed, to build it first.
+     */
+    public synchronized void submit(ChmIndexEngine engine, boolean viewed) {
+        BuildTask task = tasks.get(engine);
+        if (task != null && (task.state.equals(QUEUED) || task.state.equals(RUNNING))) {
+            if (viewed) {
+                prioritize(engine);
+            }
+            return;
+        }
+
+        task = new BuildTask(engine, viewed ? ++viewSequence : 0, ++submitSequence);
+        tasks.put(engine, task);
+        executor.execute(task);
+    }
+
+    /**
+     * Moves the queued build of an engine, if any, to the front of the queue,
+     * as the archive is being viewed.
+     */
+    public synchronized void prioritize(ChmIndexEngine engine) {
+        BuildTask task = tasks.get(engine);
+        if (task == null || !task.state.equals(QUEUED)) {
+            return;
+        }
+        if (executor.remove(task)) {
+            task.priority = ++viewSequence;
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Removes the queued build of an engine, if any, and forgets about the engine.
+     * A running build is stopped by closing the engine.
+     */
+    public synchronized void cancel(ChmIndexEngine engine) {
+        BuildTask task = tasks.remove(engine);
+        if (task != null && task.state.equals(QUEUED)) {
+            executor.remove(task);
+        }
+    }
+
+    /**
+     * @return the status of the build of an engine, or null if it was not submitted.
+     */
+    public synchronized BuildStatus getStatus(ChmIndexEngine engine) {
+        BuildTask task = tasks.get(engine);
+        if (task == null) {
+            return null;
+        }
+
+        BuildStatus status = new BuildStatus(task.state);
+        if (task.state.equals(QUEUED)) {
+            List<BuildTask> ahead = new ArrayList<BuildTask>();
+            for (Runnable r : executor.getQueue()) {
+                BuildTask other = (BuildTask) r;
+                if (other.compareTo(task) < 0) {
+                    ahead.add(other);
+                }
+            }
+            status.queuePosition = ahead.size();
+            status.etaMillis = estimateQueuedTime(ahead);
+            return status;
+        }
+
+        BuildStatistics statistics = engine.getBuildStatistics();
+        status.processedFileCount = statistics.getProcessedFileCount();
+        status.totalFileCount = statistics.getTotalFileCount();
+        if (task.state.equals(RUNNING)) {
+            status.throughput = getThroughput(task);
+            status.etaMillis = estimateRemainingTime(task);
+        } else if (statistics.getBuildTime() > 0) {
+            status.throughput = (statistics.getProcessedFileCount()
+                    - statistics.getResumedFileCount()) * 1000.0 / statistics.getBuildTime();
+            status.etaMillis = 0;
+        }
+        return status;
+    }
+
+    /**
+     * @return files indexed per second by a running build, or 0 if not known yet.
+     */
+    private static double getThroughput(BuildTask task) {
+        BuildStatistics statistics = task.engine.getBuildStatistics();
+        long elapsed = System.currentTimeMillis() - task.startTime;
+        int processed = statistics.getProcessedFileCount() - statistics.getResumedFileCount();
+        return elapsed <= 0 || processed <= 0 ? 0 : processed * 1000.0 / elapsed;
+    }
+
+    /**
+     * @return estimated time left for a running build, in milliseconds, or -1 if unknown.
+     * Merging the partitions is not included.
+     */
+    private static long estimateRemainingTime(BuildTask task) {
+        double throughput = getThroughput(task);
+        if (throughput <= 0) {
+            return -1;
+        }
+        BuildStatistics statistics = task.engine.getBuildStatistics();
+        int remaining = statistics.getTotalFileCount() - statistics.getProcessedFileCount();
+        return (long) (Math.max(remaining, 0) * 1000 / throughput);
+    }
+
+    /**
+     * @return estimated time before a queued build finishes, in milliseconds, or -1 if unknown,
+     * assuming queued builds take as long as the finished ones on average.
+     */
+    private long estimateQueuedTime(List<BuildTask> ahead) {
+        if (finishedCount == 0) {
+            return -1;
+        }
+        long averageMillis = finishedMillis / finishedCount;
+
+        // when each worker is free, serving the builds ahead in order
+        long[] freeTimes = new long[workerCount];
+        int worker = 0;
+        for (BuildTask task : tasks.values()) {
+            if (task.state.equals(RUNNING) && worker < workerCount) {
+                long remaining = estimateRemainingTime(task);
+                freeTimes[worker++] = remaining >= 0 ? remaining : averageMillis;
+            }
+        }
+        Collections.sort(ahead);
+        for (int i = 0; i < ahead.size(); i++) {
+            Arrays.sort(freeTimes);
+            freeTimes[0] += averageMillis;
+        }
+        Arrays.sort(freeTimes);
+        return freeTimes[0] + averageMillis;
+    }
+
+    /**
+     * Marks the start of serving a request. Build threads pause until it finishes.
+     */
+    public void requestStarted() {
+        activeRequests.incrementAndGet();
+    }
+
+    public void requestFinished() {
+        activeRequests.decrementAndGet();
+    }
+
+    private void waitForRequests() throws InterruptedException {
+        long deadline = System.nanoTime() + MAX_REQUEST_WAIT_MILLIS * 1000000L;
+        while (activeRequests.get() > 0 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(MIN_PAUSE_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private synchronized void setState(BuildTask task, String state) {
+        task.state = state;
+        // not counting indexes which were built already
+        long buildTime = task.engine.getBuildStatistics().getBuildTime();
+        if (state.equals(DONE) && buildTime > 0) {
+            finishedCount++;
+            finishedMillis += buildTime;
+        }
+    }
+
+    /**
+     * The status of an index build, see {@link #getStatus(ChmIndexEngine)}.
+     */
+    public static class BuildStatus {
+
+        private final String state;
+        private int queuePosition = -1;
+        private int processedFileCount = 0;
+        private int totalFileCount = 0;
+        private double throughput = 0;
+        private long etaMillis = -1;
+
+        BuildStatus(String state) {
+            this.state = state;
+        }
+
+        /**
+         * @return {@link #QUEUED}, {@link #RUNNING}, {@link #DONE} or {@link #FAILED}.
+         */
+        public String getState() {
+            return state;
+        }
+
+        /**
+         * @return number of builds ahead in the queue, or -1 if not queued.
+         */
+        public int getQueuePosition() {
+            return queuePosition;
+        }
+
+        public int getProcessedFileCount() {
+            return processedFileCount;
+        }
+
+        public int getTotalFileCount() {
+            return totalFileCount;
+        }
+
+        /**
+         * @return files indexed per second, or 0 if not known.
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * @return estimated time before the build finishes, in milliseconds, or -1 if unknown.
+         */
+        public long getEtaMillis() {
+            return etaMillis;
+        }
+    }
+
+    /**
+     * A build in the queue, ordered by the time the archive was last viewed
+     * (most recent first, not viewed last), then by submission.
+     */
+    private class BuildTask implements Runnable, Comparable<BuildTask> {
+
+        final ChmIndexEngine engine;
+        final long sequence;
+        volatile long priority;
+        volatile String state = QUEUED;
+        volatile long startTime = 0;
+
+        BuildTask(ChmIndexEngine engine, long priority, long sequence) {
+            this.engine = engine;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(BuildTask other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            startTime = System.currentTimeMillis();
+            setState(this, RUNNING);
+            engine.setBuildThrottle(throttle);
+            try {
+                engine.buildIndex();
+            } finally {
+                engine.setBuildThrottle(null);
+                // an unfinished build may have left segments to search
+                setState(this, engine.getBuildIndexStep() == 100 ? DONE : FAILED);
+            }
+        }
+    }
+}
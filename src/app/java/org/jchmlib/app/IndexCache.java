@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The directory of index files, by default {@code ~/.chmweb}.
+ * <p>
+ * Index files are named after the fingerprint of their archive (see
+ * {@link jchmlib.ChmFile#getFingerprint()}), so the same archive is indexed once
+ * wherever it is stored, and archives with the same name do not collide.
+ * The files of an index (the index, and the partitions and manifest of a build)
+ * all start with {@code <fingerprint>.index}.
+ * <p>
+ * The last access time of each index is kept in a manifest, {@code cache.properties}.
+ * When the files in the directory take more than the disk budget, the least recently
+ * used indexes are deleted, except those open in this process.
+ * Files of unknown indexes, like the ones named after archives by earlier versions,
+ * count as last used when they were modified.
+ */
+public class IndexCache {
+
+    private static final Logger LOG = Logger.getLogger(IndexCache.class.getName());
+    /**
+     * System property overriding the default disk budget, in bytes.
+     */
+    private static final String DISK_BUDGET_PROPERTY = "org.jchmlib.app.IndexCache.diskBudget";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final String MANIFEST_NAME = "cache.properties";
+
+    private static IndexCache defaultCache = null;
+
+    private final File directory;
+    private volatile long diskBudget = Long.getLong(DISK_BUDGET_PROPERTY, 1L << 30);
+    private final Properties accessTimes = new Properties();
+    private final Map<String, Integer> openCounts = new HashMap<String, Integer>();
+
+    public IndexCache(File directory) {
+        this.directory = directory;
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        loadManifest();
+    }
+
+    /**
+     * @return the cache in {@code ~/.chmweb}, shared by all engines of the process.
+     */
+    public static synchronized IndexCache getDefault() {
+        if (defaultCache == null) {
+            String userHome = System.getProperty("user.home");
+            defaultCache = new IndexCache(new File(userHome, ".chmweb"));
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Sets how much disk space index files may take, evicting indexes
+     * if they take more. It can also be set with the system property
+     * {@code org.jchmlib.app.IndexCache.diskBudget}. The default is 1 GB.
+     */
+    public void setDiskBudget(long bytes) {
+        diskBudget = Math.max(bytes, 0);
+        evict();
+    }
+
+    public long getDiskBudget() {
+        return diskBudget;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    String getIndexPath(String fingerprint) {
+        return new File(directory, fingerprint + INDEX_SUFFIX).toString();
+    }
+
+    /**
+     * Marks an index as in use, so that it is not evicted, and records the access.
+     */
+    synchronized void open(String fingerprint) {
+        Integer count = openCounts.get(fingerprint);
+        openCounts.put(fingerprint, count == null ? 1 : count + 1);
+        touch(fingerprint);
+    }
+
+    synchronized void close(String fingerprint) {
+        Integer count = openCounts.get(fingerprint);
+        if (count == null || count <= 1) {
+            openCounts.remove(fingerprint);
+        } else {
+            openCounts.put(fingerprint, count - 1);
+        }
+    }
+
+    /**
+     * Records an access to an index.
+     */
+    synchronized void touch(String fingerprint) {
+        accessTimes.setProperty(fingerprint, String.valueOf(System.currentTimeMillis()));
+        saveManifest();
+    }
+
+    /**
+     * Deletes the least recently used indexes not open, until the index files
+     * fit in the disk budget.
+     */
+    synchronized void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final Map<String, Long> lastUses = new HashMap<String, Long>();
+        Map<String, List<File>> filesByIndex = new HashMap<String, List<File>>();
+        long totalSize = 0;
+        for (File file : files) {
+            String name = file.getName();
+            int end = name.indexOf(INDEX_SUFFIX);
+            if (end <= 0 || !file.isFile()) {
+                continue;
+            }
+            String key = name.substring(0, end);
+            List<File> indexFiles = filesByIndex.get(key);
+            if (indexFiles == null) {
+                indexFiles = new ArrayList<File>();
+                filesByIndex.put(key, indexFiles);
+                lastUses.put(key, getLastUse(key, file));
+            } else {
+                lastUses.put(key, Math.max(lastUses.get(key), getLastUse(key, file)));
+            }
+            indexFiles.add(file);
+            totalSize += file.length();
+        }
+        if (totalSize <= diskBudget) {
+            return;
+        }
+
+        List<String> keys = new ArrayList<String>(filesByIndex.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String key1, String key2) {
+                return lastUses.get(key1).compareTo(lastUses.get(key2));
+            }
+        });
+        Set<String> evicted = new HashSet<String>();
+        for (String key : keys) {
+            if (totalSize <= diskBudget) {
+                break;
+            }
+            if (openCounts.containsKey(key)) {
+                continue;
+            }
+            LOG.info("Evicting index " + key);
+            for (File file : filesByIndex.get(key)) {
+                long size = file.length();
+                if (file.delete()) {
+                    totalSize -= size;
+                } else {
+                    LOG.info("Failed to delete " + file);
+                }
+            }
+            evicted.add(key);
+        }
+
+        if (!evicted.isEmpty()) {
+            for (String key : evicted) {
+                accessTimes.remove(key);
+            }
+            saveManifest();
+        }
+    }
+
+    private long getLastUse(String key, File file) {
+        String accessTime = accessTimes.getProperty(key);
+        if (accessTime != null) {
+            try {
+                return Long.parseLong(accessTime);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return file.lastModified();
+    }
+
+    private void loadManifest() {
+        File file = new File(directory, MANIFEST_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                accessTimes.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.info("Failed to read " + file + ": " + e);
+        }
+    }
+
+    private void saveManifest() {
+        File file = new File(directory, MANIFEST_NAME);
+        File tempFile = new File(directory, MANIFEST_NAME + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                accessTimes.store(out, "last access time of indexes");
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+                LOG.info("Failed to save " + file);
+            }
+        } catch (IOException e) {
+            LOG.info("Failed to save " + file + ": " + e);
+        }
+    }
+}
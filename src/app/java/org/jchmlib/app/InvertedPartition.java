@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.jchmlib.app.DocumentInverter.InvertedDocument;
+
+/**
+ * In-memory postings of a partition, while the index is being built.
+ * <p>
+ * Words are mapped to term IDs by a dictionary of chars, and the postings of each term
+ * are appended to a growable {@code int[]}, as
+ * {@code docID delta, frequency, location deltas...} for each document.
+ * This takes a small multiple of the size of the postings on disk, instead of
+ * a few objects per word and document.
+ */
+class InvertedPartition {
+
+    final DocumentTable.Writer documents = new DocumentTable.Writer();
+    private int docCount = 0;
+    private long wordCount = 0;
+
+    private char[] termChars = new char[1 << 16];
+    private int termCharsLength = 0;
+    private int[] termStarts = new int[1024];
+    private int[] termLengths = new int[1024];
+    private int termCount = 0;
+    /**
+     * term ID + 1 by hash, 0 for empty slots.
+     */
+    private int[] table = new int[2048];
+
+    private int[][] postings = new int[1024][];
+    private int[] postingLengths = new int[1024];
+    private int[] lastDocIds = new int[1024];
+    private int[] docCounts = new int[1024];
+    /**
+     * allocated length of all postings buffers.
+     */
+    private long postingsCapacity = 0;
+
+    int getDocCount() {
+        return docCount;
+    }
+
+    long getWordCount() {
+        return wordCount;
+    }
+
+    int getTermCount() {
+        return termCount;
+    }
+
+    /**
+     * @return estimated heap size in bytes, including unused buffer capacity.
+     */
+    long getMemoryUsage() {
+        return 2L * termChars.length
+                + 4L * (termStarts.length * 5L + table.length)
+                + termStarts.length
+                + 4L * postingsCapacity
+                // a reference and an array header per postings buffer
+                + 24L * termCount
+                + documents.getMemoryUsage();
+    }
+
+    void addDocument(int docID, String url, String title, InvertedDocument doc)
+            throws IOException {
+        documents.add(docID, url, title);
+        docCount++;
+        wordCount += doc.wordCount;
+
+        for (int i = 0; i < doc.termCount; i++) {
+            int start = doc.termStarts[i];
+            int termId = getTermId(doc.termChars, start, doc.termStarts[i + 1] - start);
+
+            int locationStart = doc.locationStarts[i];
+            int locationEnd = doc.locationStarts[i + 1];
+
+            int[] buffer = ensureCapacity(termId, 2 + locationEnd - locationStart);
+            int length = postingLengths[termId];
+            buffer[length++] = docID - lastDocIds[termId];
+            buffer[length++] = doc.frequencies[i];
+            int lastLocation = 0;
+            for (int k = locationStart; k < locationEnd; k++) {
+                buffer[length++] = doc.locations[k] - lastLocation;
+                lastLocation = doc.locations[k];
+            }
+            postingLengths[termId] = length;
+            lastDocIds[termId] = docID;
+            docCounts[termId]++;
+        }
+    }
+
+    private int[] ensureCapacity(int termId, int extra) {
+        int[] buffer = postings[termId];
+        int required = postingLengths[termId] + extra;
+        if (buffer == null) {
+            buffer = new int[Math.max(required, 8)];
+            postings[termId] = buffer;
+            postingsCapacity += buffer.length;
+        } else if (required > buffer.length) {
+            int oldLength = buffer.length;
+            buffer = Arrays.copyOf(buffer, Math.max(required, oldLength + (oldLength >> 1)));
+            postings[termId] = buffer;
+            postingsCapacity += buffer.length - oldLength;
+        }
+        return buffer;
+    }
+
+    private int getTermId(char[] word, int start, int length) {
+        int mask = table.length - 1;
+        int slot = DocumentInverter.hash(word, start, length) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            int termId = entry - 1;
+            if (termLengths[termId] == length && DocumentInverter.regionEquals(
+                    termChars, termStarts[termId], word, start, length)) {
+                return termId;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (termCount == termStarts.length) {
+            int capacity = termCount * 2;
+            termStarts = Arrays.copyOf(termStarts, capacity);
+            termLengths = Arrays.copyOf(termLengths, capacity);
+            postings = Arrays.copyOf(postings, capacity);
+            postingLengths = Arrays.copyOf(postingLengths, capacity);
+            lastDocIds = Arrays.copyOf(lastDocIds, capacity);
+            docCounts = Arrays.copyOf(docCounts, capacity);
+        }
+        if (termCharsLength + length > termChars.length) {
+            termChars = Arrays.copyOf(termChars,
+                    Math.max(termChars.length * 2, termCharsLength + length));
+        }
+        System.arraycopy(word, start, termChars, termCharsLength, length);
+        int termId = termCount++;
+        termStarts[termId] = termCharsLength;
+        termLengths[termId] = length;
+        termCharsLength += length;
+        lastDocIds[termId] = 0;
+        table[slot] = termId + 1;
+
+        if (termCount * 2 > table.length) {
+            rehash();
+        }
+        return termId;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int termId = 0; termId < termCount; termId++) {
+            int slot = DocumentInverter.hash(termChars, termStarts[termId], termLengths[termId])
+                    & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = termId + 1;
+        }
+    }
+
+    private String getTerm(int termId) {
+        return new String(termChars, termStarts[termId], termLengths[termId]);
+    }
+
+    /**
+     * @return term IDs in the order of their words.
+     */
+    Integer[] getSortedTermIds() {
+        final String[] terms = new String[termCount];
+        Integer[] termIds = new Integer[termCount];
+        for (int termId = 0; termId < termCount; termId++) {
+            terms[termId] = getTerm(termId);
+            termIds[termId] = termId;
+        }
+        Arrays.sort(termIds, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer id1, Integer id2) {
+                return terms[id1].compareTo(terms[id2]);
+            }
+        });
+        return termIds;
+    }
+
+    String getWord(int termId) {
+        return getTerm(termId);
+    }
+
+    int getDocCount(int termId) {
+        return docCounts[termId];
+    }
+
+    /**
+     * Adds the postings of a term to a writer, with absolute document IDs and positions.
+     */
+    void writePostings(int termId, BlockPostingsWriter writer) throws IOException {
+        int[] buffer = postings[termId];
+        int length = postingLengths[termId];
+        int docID = 0;
+        int i = 0;
+        while (i < length) {
+            docID += buffer[i++];
+            int frequency = buffer[i++];
+            writer.startDocument(docID, frequency);
+            int location = 0;
+            for (int k = 0; k < frequency; k++) {
+                location += buffer[i++];
+                writer.addPosition(location);
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+import jchmlib.AbstractIndexSearcher;
+import jchmlib.AbstractIndexSearcher.SearchResult;
+import jchmlib.SearchResults;
+
+/**
+ * Searches all archives served in this process at once.
+ * <p>
+ * A query is run on every archive in parallel, with its built-in index or the index
+ * built by {@link ChmIndexEngine}. Archives without an index are skipped, and archives
+ * not answering before the deadline are left out of the results.
+ * The best results of all archives are merged with a min-heap, by score.
+ * Scores of different archives are comparable, as they are all BM25 scores,
+ * though each archive weighs words by its own document frequencies.
+ */
+public class LibrarySearcher {
+
+    private static final Logger LOG = Logger.getLogger(LibrarySearcher.class.getName());
+    /**
+     * Maximum number of results of a search, which each archive ranks too.
+     */
+    public static final int MAX_RESULTS = 300;
+    public static final int MAX_TIMEOUT_MILLIS = 10000;
+    /**
+     * Orders results by ascending score, then by descending archive and rank,
+     * so that the worst result is on top of a min-heap.
+     */
+    private static final Comparator<LibraryResult> SCORE_ORDER = new Comparator<LibraryResult>() {
+        @Override
+        public int compare(LibraryResult r1, LibraryResult r2) {
+            int cmp = Double.compare(r1.result.score, r2.result.score);
+            if (cmp != 0) {
+                return cmp;
+            }
+            if (r1.archiveIndex != r2.archiveIndex) {
+                return r1.archiveIndex > r2.archiveIndex ? -1 : 1;
+            }
+            return r1.rank > r2.rank ? -1 : (r1.rank == r2.rank ? 0 : 1);
+        }
+    };
+
+    private static LibrarySearcher defaultSearcher = null;
+
+    private final List<ChmWeb> archives = new ArrayList<ChmWeb>();
+    /**
+     * Searches past their deadline stop ranking (see
+     * {@link AbstractIndexSearcher#search(String, boolean, boolean, int, int, long)}),
+     * or never start, so that slow queries do not pile up threads.
+     */
+    private final ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LibrarySearcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * @return the library of all servers of the process.
+     */
+    public static synchronized LibrarySearcher getDefault() {
+        if (defaultSearcher == null) {
+            defaultSearcher = new LibrarySearcher();
+        }
+        return defaultSearcher;
+    }
+
+    public synchronized void add(ChmWeb archive) {
+        if (!archives.contains(archive)) {
+            archives.add(archive);
+        }
+    }
+
+    public synchronized void remove(ChmWeb archive) {
+        archives.remove(archive);
+    }
+
+    public synchronized List<ChmWeb> getArchives() {
+        return new ArrayList<ChmWeb>(archives);
+    }
+
+    /**
+     * Searches all archives.
+     *
+     * @param maxResults the maximum number of results, at most {@link #MAX_RESULTS}.
+     * @param timeoutMillis how long to wait for the archives,
+     * at most {@link #MAX_TIMEOUT_MILLIS}.
+     * @return the best results of all archives, by descending score.
+     */
+    public LibraryResults search(final String query, final boolean titlesOnly,
+            int maxResults, long timeoutMillis) {
+        final int limit = Math.min(Math.max(maxResults, 1), MAX_RESULTS);
+        timeoutMillis = Math.min(Math.max(timeoutMillis, 0), MAX_TIMEOUT_MILLIS);
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<ChmWeb> archives = getArchives();
+        List<Future<SearchResults>> futures = new ArrayList<Future<SearchResults>>();
+        for (final ChmWeb archive : archives) {
+            futures.add(executor.submit(new Callable<SearchResults>() {
+                @Override
+                public SearchResults call() {
+                    AbstractIndexSearcher searcher = archive.getIndexSearcher();
+                    if (searcher == null) {
+                        return null;
+                    }
+                    return searcher.search(query, false, titlesOnly, 0, limit, deadline);
+                }
+            }));
+        }
+
+        LibraryResults libraryResults = new LibraryResults(archives.size());
+        // min-heap of the best results so far, the worst of them on top
+        PriorityQueue<LibraryResult> topResults = new PriorityQueue<LibraryResult>(
+                limit + 1, SCORE_ORDER);
+        for (int i = 0; i < futures.size(); i++) {
+            ChmWeb archive = archives.get(i);
+            Future<SearchResults> future = futures.get(i);
+            SearchResults results;
+            try {
+                results = future.get(Math.max(deadline - System.currentTimeMillis(), 0),
+                        TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // a search not started yet never starts, a running one gives up by itself
+                future.cancel(false);
+                LOG.info("Search timed out: " + archive.getChmFilePath());
+                libraryResults.timedOut.add(archive);
+                continue;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException) {
+                    LOG.info("Search timed out: " + archive.getChmFilePath());
+                    libraryResults.timedOut.add(archive);
+                } else {
+                    LOG.info("Failed to search " + archive.getChmFilePath() + ": "
+                            + e.getCause());
+                }
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<SearchResults> remaining : futures.subList(i, futures.size())) {
+                    remaining.cancel(false);
+                }
+                break;
+            }
+            if (results == null) {
+                continue;
+            }
+
+            libraryResults.totalHits += results.getTotalHits();
+            int rank = 0;
+            for (SearchResult result : results.getResults()) {
+                LibraryResult libraryResult = new LibraryResult(archive, i, rank++, result);
+                if (topResults.size() >= limit) {
+                    if (SCORE_ORDER.compare(libraryResult, topResults.peek()) <= 0) {
+                        // the results of an archive come by descending score
+                        break;
+                    }
+                    topResults.poll();
+                }
+                topResults.add(libraryResult);
+            }
+        }
+
+        List<LibraryResult> results = libraryResults.results;
+        while (!topResults.isEmpty()) {
+            results.add(topResults.poll());
+        }
+        Collections.reverse(results);
+        return libraryResults;
+    }
+
+    /**
+     * A result of a library search, with the archive it comes from.
+     */
+    public static class LibraryResult {
+
+        public final ChmWeb archive;
+        public final SearchResult result;
+        private final int archiveIndex;
+        private final int rank;
+
+        LibraryResult(ChmWeb archive, int archiveIndex, int rank, SearchResult result) {
+            this.archive = archive;
+            this.archiveIndex = archiveIndex;
+            this.rank = rank;
+            this.result = result;
+        }
+    }
+
+    public static class LibraryResults {
+
+        private final int archiveCount;
+        private int totalHits = 0;
+        private final List<LibraryResult> results = new ArrayList<LibraryResult>();
+        private final List<ChmWeb> timedOut = new ArrayList<ChmWeb>();
+
+        LibraryResults(int archiveCount) {
+            this.archiveCount = archiveCount;
+        }
+
+        public int getArchiveCount() {
+            return archiveCount;
+        }
+
+        /**
+         * @return the number of matching documents in the archives which answered in time.
+         */
+        public int getTotalHits() {
+            return totalHits;
+        }
+
+        /**
+         * @return the best results, by descending score.
+         */
+        public List<LibraryResult> getResults() {
+            return results;
+        }
+
+        /**
+         * @return the archives which did not answer before the deadline.
+         */
+        public List<ChmWeb> getTimedOut() {
+            return timedOut;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Touches the pages of mapped regions from a background thread, up to a window ahead of
+ * a reader going through each of them in order, so that the reader rarely waits for
+ * the disk. Regions are read in turn, so that all of them stay ahead of the reader.
+ * <p>
+ * Regions are added before the thread starts. The reader reports its progress
+ * with {@link #setReadPosition(int, int)}, and calls {@link #stop()} when done.
+ */
+class ReadAhead implements Runnable {
+
+    private static final int PAGE_SIZE = 4096;
+
+    private final int window;
+    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    private final List<Integer> ends = new ArrayList<Integer>();
+    private final List<Integer> starts = new ArrayList<Integer>();
+    private AtomicIntegerArray readPositions;
+    private volatile boolean stopped = false;
+    /**
+     * keeps the page reads from being optimized away.
+     */
+    @SuppressWarnings("unused")
+    private volatile int checksum;
+
+    /**
+     * @param window how far to read ahead of the reader in each region, in bytes.
+     */
+    ReadAhead(int window) {
+        this.window = window;
+    }
+
+    /**
+     * @return the index of the region, for {@link #setReadPosition(int, int)}.
+     */
+    int add(ByteBuffer buffer, int start, int end) {
+        buffers.add(buffer.duplicate());
+        starts.add(start);
+        ends.add(end);
+        return buffers.size() - 1;
+    }
+
+    /**
+     * Starts reading ahead in a daemon thread.
+     */
+    void start() {
+        readPositions = new AtomicIntegerArray(buffers.size());
+        for (int i = 0; i < buffers.size(); i++) {
+            readPositions.set(i, starts.get(i));
+        }
+        Thread thread = new Thread(this, "ChmIndexEngine read-ahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void setReadPosition(int region, int position) {
+        readPositions.set(region, position);
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        int regionCount = buffers.size();
+        int[] positions = new int[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            positions[i] = starts.get(i);
+        }
+
+        int sum = 0;
+        while (!stopped) {
+            boolean done = true;
+            boolean touched = false;
+            for (int i = 0; i < regionCount; i++) {
+                int end = ends.get(i);
+                if (positions[i] >= end) {
+                    continue;
+                }
+                done = false;
+                int readPosition = readPositions.get(i);
+                if (positions[i] < readPosition) {
+                    // the reader is ahead, skip what it has read
+                    positions[i] = readPosition;
+                } else if (positions[i] - readPosition < window) {
+                    sum += buffers.get(i).get(positions[i]);
+                    positions[i] += PAGE_SIZE;
+                    touched = true;
+                }
+            }
+            if (done) {
+                break;
+            }
+            if (!touched) {
+                LockSupport.parkNanos(1000000);
+            }
+        }
+        checksum = sum;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The sorted words of an index, with the location of their postings and their document
+ * counts, read in place from a buffer (usually a slice of the mapped index file).
+ * <p>
+ * Words are front coded in blocks of {@link #BLOCK_SIZE}: the first word of a block
+ * is stored whole, and each other word as the length of the prefix it shares
+ * with the word before it, followed by the rest of it.
+ * <pre>
+ * word count, block count (ints)
+ * offset of each block from the start of the dictionary (ints)
+ * blocks: for each word, shared prefix length, suffix length, suffix chars,
+ *         postings offset (first word of a block only), postings length,
+ *         document count (varints)
+ * </pre>
+ * Postings are stored in the order of their words, so the postings of a word start
+ * where the ones of the word before it end.
+ * <p>
+ * Opening a dictionary reads nothing but its header. A lookup is a binary search
+ * on the first words of the blocks, followed by a scan of one block.
+ * A dictionary is thread-safe, but each thread needs its own {@link Cursor}.
+ */
+class TermDictionary {
+
+    static final int BLOCK_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final int wordCount;
+    private final int blockCount;
+
+    /**
+     * @param buffer the dictionary, from position 0. Only absolute gets are used.
+     */
+    TermDictionary(ByteBuffer buffer) {
+        this.buffer = buffer;
+        wordCount = buffer.getInt(0);
+        blockCount = buffer.getInt(4);
+    }
+
+    int size() {
+        return wordCount;
+    }
+
+    /**
+     * @return a cursor before the first word.
+     */
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * @return a cursor on the word, or null if the word is not found.
+     */
+    Cursor find(String word) {
+        Cursor cursor = seek(word);
+        return cursor.hasWord() && cursor.getWord().equals(word) ? cursor : null;
+    }
+
+    /**
+     * @return a cursor on the first word not less than the given one,
+     * past the last word if there is none.
+     */
+    Cursor seek(String word) {
+        Cursor cursor = new Cursor();
+        // the last block starting with a word not greater than the given one
+        int low = 0;
+        int high = blockCount - 1;
+        int block = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (cursor.readFirstWord(mid).compareTo(word) <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        cursor.index = block * BLOCK_SIZE - 1;
+        while (cursor.next() && cursor.getWord().compareTo(word) < 0) {
+            // the word is after this one, in this block
+        }
+        return cursor;
+    }
+
+    private int getBlockOffset(int block) {
+        return buffer.getInt(8 + 4 * block);
+    }
+
+    /**
+     * Iterates the words in order, from where it was created.
+     */
+    class Cursor {
+
+        private final ByteBuffer in = buffer.duplicate();
+        private int index = -1;
+        private boolean hasWord = false;
+        private char[] chars = new char[32];
+        private int length = 0;
+        private String word = null;
+        private int postingsOffset = 0;
+        private int postingsLength = 0;
+        private int docCount = 0;
+
+        /**
+         * Moves to the next word.
+         *
+         * @return false if there is none.
+         */
+        boolean next() {
+            if (index + 1 >= wordCount) {
+                index = wordCount;
+                hasWord = false;
+                return false;
+            }
+            index++;
+            boolean blockStart = index % BLOCK_SIZE == 0;
+            if (blockStart) {
+                in.position(getBlockOffset(index / BLOCK_SIZE));
+            }
+            readChars();
+            postingsOffset = blockStart ? Varint.readUnsignedVarInt(in)
+                    : postingsOffset + postingsLength;
+            postingsLength = Varint.readUnsignedVarInt(in);
+            docCount = Varint.readUnsignedVarInt(in);
+            hasWord = true;
+            return true;
+        }
+
+        private void readChars() {
+            int shared = Varint.readUnsignedVarInt(in);
+            int suffixLength = Varint.readUnsignedVarInt(in);
+            length = shared + suffixLength;
+            if (length > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(length, chars.length * 2));
+            }
+            for (int i = shared; i < length; i++) {
+                chars[i] = (char) Varint.readUnsignedVarInt(in);
+            }
+            word = null;
+        }
+
+        private String readFirstWord(int block) {
+            in.position(getBlockOffset(block));
+            readChars();
+            return getWord();
+        }
+
+        boolean hasWord() {
+            return hasWord;
+        }
+
+        String getWord() {
+            if (word == null) {
+                word = new String(chars, 0, length);
+            }
+            return word;
+        }
+
+        boolean startsWith(String prefix) {
+            if (prefix.length() > length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (chars[i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int getPostingsOffset() {
+            return postingsOffset;
+        }
+
+        int getPostingsLength() {
+            return postingsLength;
+        }
+
+        int getDocCount() {
+            return docCount;
+        }
+    }
+
+    /**
+     * Writes a dictionary, from words added in order.
+     */
+    static class Writer {
+
+        private final ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(blocks);
+        private int[] blockOffsets = new int[64];
+        private int wordCount = 0;
+        private String lastWord = "";
+        private int lastPostingsEnd = 0;
+
+        /**
+         * Adds a word, greater than the ones added before, whose postings
+         * follow the ones of the word before it.
+         */
+        void add(String word, int postingsOffset, int postingsLength, int docCount)
+                throws IOException {
+            boolean blockStart = wordCount % BLOCK_SIZE == 0;
+            if (!blockStart && postingsOffset != lastPostingsEnd) {
+                throw new IOException("Postings of " + word + " are out of order");
+            }
+
+            int shared = 0;
+            if (blockStart) {
+                int block = wordCount / BLOCK_SIZE;
+                if (block == blockOffsets.length) {
+                    blockOffsets = Arrays.copyOf(blockOffsets, block * 2);
+                }
+                blockOffsets[block] = blocks.size();
+            } else {
+                int maxShared = Math.min(lastWord.length(), word.length());
+                while (shared < maxShared && lastWord.charAt(shared) == word.charAt(shared)) {
+                    shared++;
+                }
+            }
+
+            Varint.writeUnsignedVarInt(shared, out);
+            Varint.writeUnsignedVarInt(word.length() - shared, out);
+            for (int i = shared; i < word.length(); i++) {
+                Varint.writeUnsignedVarInt(word.charAt(i), out);
+            }
+            if (blockStart) {
+                Varint.writeUnsignedVarInt(postingsOffset, out);
+            }
+            Varint.writeUnsignedVarInt(postingsLength, out);
+            Varint.writeUnsignedVarInt(docCount, out);
+
+            lastWord = word;
+            lastPostingsEnd = postingsOffset + postingsLength;
+            wordCount++;
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            int blockCount = (wordCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            int headerSize = 8 + 4 * blockCount;
+            target.writeInt(wordCount);
+            target.writeInt(blockCount);
+            for (int block = 0; block < blockCount; block++) {
+                target.writeInt(headerSize + blockOffsets[block]);
+            }
+            blocks.writeTo(target);
+        }
+
+        /**
+         * @return the dictionary in a buffer.
+         */
+        ByteBuffer toBuffer() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeTo(new DataOutputStream(bytes));
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+    }
+}
@@ -19,6 +19,7 @@ package org.jchmlib.app;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Encodes signed and unsigned values using a common variable-length
@@ -191,6 +192,27 @@ final class Varint {
         return value | (b << i);
     }
 
+    /**
+     * Reads a value at the position of the buffer, and moves the position past it.
+     *
+     * @throws IllegalArgumentException if variable-length value does not terminate
+     *                                  after 5 bytes have been read
+     * @see #readUnsignedVarInt(DataInput)
+     */
+    public static int readUnsignedVarInt(ByteBuffer in) {
+        int value = 0;
+        int i = 0;
+        int b;
+        while (((b = in.get()) & 0x80) != 0) {
+            value |= (b & 0x7F) << i;
+            i += 7;
+            if (i > 35) {
+                throw new IllegalArgumentException("Variable length quantity is too long");
+            }
+        }
+        return value | (b << i);
+    }
+
     public static int readSignedVarInt(byte[] bytes) {
         int raw = readUnsignedVarInt(bytes);
         // This undoes the trick in writeSignedVarInt()
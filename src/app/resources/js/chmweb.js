@@ -209,12 +209,12 @@ var searchInCHM = function (query, use_regex) {
 
 var onSearchResultReceived = function (result) {
   /** @namespace result.ok **/
-  if (!result.ok) {
+  /** @namespace result.results **/
+  if (!result.ok || result.results.length === 0) {
     $("#search-results").addClass("hidden");
     $("#toggle-highlight").addClass("hidden");
     $("#no-result-found").removeClass("hidden");
   } else {
-    /** @namespace result.results **/
     var ol = $("#search-result-list");
     ol.empty();
     $(result.results).each(function (i, r) {